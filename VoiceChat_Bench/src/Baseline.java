@@ -0,0 +1,109 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * compares the scores of a JMH run, written as CSV (-rf csv), with the ones
+ * of the baseline file, and can make them the new baseline. the benchmarks
+ * that weren't run keep their baseline scores.
+ * usage: Baseline results.csv baseline.properties [save]
+ * run by "ant jmh"
+ *
+ */
+public class Baseline {
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String[]> results = read(new File(args[0]));
+        File file = new File(args[1]);
+        Properties baseline = new Properties();
+        if (file.isFile()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        System.out.printf("%-48s %12s %11s %8s %10s%n", "Benchmark", "Score", "Error", "Units", "baseline");
+        for (Map.Entry<String, String[]> e : results.entrySet()) {
+            String[] row = e.getValue(); //Benchmark, Mode, Threads, Samples, Score, Score Error (99.9%), Unit
+            double score = Double.parseDouble(row[4]);
+            String vs = "";
+            if (baseline.getProperty(e.getKey()) != null) {
+                double base = Double.parseDouble(baseline.getProperty(e.getKey()));
+                vs = String.format("%+.1f%%", (score - base) * 100 / base);
+            }
+            System.out.printf("%-48s %12.1f +- %8.1f %8s %10s%n", e.getKey(), score, Double.parseDouble(row[5]), row[6], vs);
+            baseline.setProperty(e.getKey(), String.format(Locale.ROOT, "%.1f", score));
+        }
+        if (args.length > 2 && Boolean.parseBoolean(args[2])) {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                baseline.store(out, "JMH scores, JDK " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " CPU");
+            } finally {
+                out.close();
+            }
+            System.out.println("saved as the baseline in " + file);
+        }
+    }
+
+    /**
+     * the rows of a JMH CSV file, by benchmark and parameters
+     */
+    private static Map<String, String[]> read(File file) throws IOException {
+        Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String[] header = split(in.readLine());
+            for (String line; (line = in.readLine()) != null;) {
+                String[] row = split(line);
+                StringBuilder key = new StringBuilder(row[0]);
+                for (int i = 7; i < row.length; i++) { //"Param: name" columns, empty for the benchmarks without that parameter
+                    if (!row[i].isEmpty()) {
+                        key.append(':').append(header[i].substring("Param: ".length())).append('=').append(row[i]);
+                    }
+                }
+                rows.put(key.toString(), row);
+            }
+        } finally {
+            in.close();
+        }
+        return rows;
+    }
+
+    private static String[] split(String line) { //fields separated by commas, strings in quotes
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+}
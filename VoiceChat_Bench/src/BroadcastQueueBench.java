@@ -0,0 +1,144 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * measures the latency between a ClientConnection adding a message to the
+ * broadcast queue and the BroadcastThread taking it, with many producers at
+ * the same time. compares the MpscQueue with the old ArrayList + sleep(10)
+ * design, which also loses messages under contention.
+ * usage: BroadcastQueueBench [producers] [messages per producer] [ms between messages]
+ * run with "ant bench"
+ *
+ */
+public class BroadcastQueueBench {
+
+    private interface Queue {
+
+        void offer(long enqueueTime);
+
+        long take(); //-1 if nothing arrived for a while
+    }
+
+    private static class Mpsc implements Queue {
+
+        private MpscQueue<long[]> q = new MpscQueue<long[]>();
+
+        @Override
+        public void offer(long t) {
+            q.offer(new long[]{t});
+        }
+
+        @Override
+        public long take() {
+            long[] t = q.poll(1, TimeUnit.SECONDS);
+            return t == null ? -1 : t[0];
+        }
+    }
+
+    /**
+     * same code the server used before the MpscQueue
+     */
+    private static class Legacy implements Queue {
+
+        private ArrayList<long[]> q = new ArrayList<long[]>();
+
+        @Override
+        public void offer(long t) {
+            try {
+                q.add(new long[]{t});
+            } catch (Throwable e) {
+                Utils.sleep(1);
+                offer(t);
+            }
+        }
+
+        @Override
+        public long take() {
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < 1000000000L) {
+                try {
+                    if (q.isEmpty()) {
+                        Utils.sleep(10);
+                        continue;
+                    }
+                    long[] t = q.get(0);
+                    q.remove(t);
+                    if (t != null) {
+                        return t[0];
+                    }
+                } catch (Throwable e) {
+                }
+            }
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int interval = args.length > 2 ? Integer.parseInt(args[2]) : 20; //a voice frame every 20ms
+        System.out.println(producers + " producers, " + perProducer + " messages each, one every " + interval + "ms");
+        run("MpscQueue", new Mpsc(), producers, perProducer, interval); //warmup
+        run("MpscQueue", new Mpsc(), producers, perProducer, interval);
+        run("ArrayList+sleep", new Legacy(), producers, perProducer, interval);
+    }
+
+    private static void run(String name, final Queue q, int producers, final int perProducer, final int interval) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong sent = new AtomicLong();
+        Thread[] t = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int offset = i;
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    if (interval > 0) {
+                        Utils.sleep(offset % interval); //spread the producers like real clients
+                    }
+                    for (int j = 0; j < perProducer; j++) {
+                        q.offer(System.nanoTime());
+                        sent.incrementAndGet();
+                        if (interval > 0) {
+                            Utils.sleep(interval);
+                        }
+                    }
+                }
+            };
+            t[i].start();
+        }
+        long[] lat = new long[producers * perProducer];
+        int n = 0;
+        start.countDown();
+        while (n < lat.length) {
+            long e = q.take();
+            if (e < 0) { //nothing for a second, the rest has been lost
+                break;
+            }
+            lat[n++] = System.nanoTime() - e;
+        }
+        for (Thread p : t) {
+            p.join();
+        }
+        Arrays.sort(lat, 0, n);
+        System.out.printf("%-16s received %d/%d  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", name, n, sent.get(),
+                us(lat, n, 0.5), us(lat, n, 0.9), us(lat, n, 0.99), us(lat, n, 0.999), n == 0 ? "-" : (lat[n - 1] / 1000) + "us");
+    }
+
+    private static String us(long[] sorted, int n, double p) {
+        return n == 0 ? "-" : (sorted[(int) Math.min(n - 1, p * n)] / 1000) + "us";
+    }
+}
@@ -0,0 +1,163 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * measures the SpeechCodecs on frames like the ones the clients send (900
+ * samples, 8 bit, 11025Hz) of a synthetic voice: encode and decode time per
+ * frame, bytes per frame and per second, the signal to noise ratio of the
+ * decoded samples, and the memory allocated per frame (besides the data a
+ * SoundPacket carries). compares them with the old path, a GZIPOutputStream
+ * and a GZIPInputStream for each frame.
+ * usage: CodecBench [frames] [rounds]
+ * run with "ant bench -Dbench.class=CodecBench"
+ *
+ */
+public class CodecBench {
+
+    private static final int FRAME = SoundPacket.defaultDataLenght;
+    private static final float RATE = SoundPacket.defaultFormat.getSampleRate();
+
+    private interface Path {
+
+        String name();
+
+        int encode(byte[] pcm8, int frame, byte[][] out) throws IOException; //returns the length of out[frame]
+
+        void decode(byte[] data, byte[] pcm8) throws IOException;
+    }
+
+    /**
+     * what MicThread and AudioChannel used to do
+     */
+    private static class GzipStreams implements Path {
+
+        @Override
+        public String name() {
+            return "GZIP streams";
+        }
+
+        @Override
+        public int encode(byte[] pcm8, int frame, byte[][] out) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            GZIPOutputStream go = new GZIPOutputStream(baos);
+            go.write(pcm8);
+            go.close();
+            out[frame] = baos.toByteArray();
+            return out[frame].length;
+        }
+
+        @Override
+        public void decode(byte[] data, byte[] pcm8) throws IOException {
+            GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(data));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            for (;;) {
+                int b = gis.read();
+                if (b == -1) {
+                    break;
+                }
+                baos.write((byte) b);
+            }
+            System.arraycopy(baos.toByteArray(), 0, pcm8, 0, FRAME);
+        }
+    }
+
+    private static class Codec implements Path {
+
+        private SpeechCodec c;
+        private short[] pcm = new short[FRAME];
+
+        private Codec(SpeechCodec c) {
+            this.c = c;
+        }
+
+        @Override
+        public String name() {
+            return c.getName();
+        }
+
+        @Override
+        public int encode(byte[] pcm8, int frame, byte[][] out) {
+            if (out[frame] == null) {
+                out[frame] = new byte[c.maxEncodedLength(FRAME)];
+            }
+            Codecs.toPcm16(pcm8, FRAME, pcm);
+            return c.encode(pcm, FRAME, out[frame]);
+        }
+
+        @Override
+        public void decode(byte[] data, byte[] pcm8) throws IOException {
+            Codecs.toPcm8(pcm, c.decode(data, data.length, pcm), pcm8);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        byte[][] voice = Voice.voice(frames);
+        System.out.println(frames + " frames of " + FRAME + " samples, " + rounds + " rounds");
+        Path[] paths = {new GzipStreams(), new Codec(Codecs.create(Codecs.GZIP)), new Codec(Codecs.create(Codecs.DEFLATE)), new Codec(Codecs.create(Codecs.PCMU)), new Codec(Codecs.create(Codecs.PCMA)), new Codec(Codecs.create(Codecs.IMA_ADPCM))};
+        for (Path p : paths) { //warmup
+            run(p, voice, rounds, false);
+        }
+        for (Path p : paths) {
+            run(p, voice, rounds, true);
+        }
+    }
+
+    private static void run(Path p, byte[][] voice, int rounds, boolean print) throws IOException {
+        int frames = voice.length;
+        byte[][] encoded = new byte[frames][];
+        byte[][] data = new byte[frames][];
+        byte[] decoded = new byte[FRAME];
+        long bytes = 0, encodeNs = 0, decodeNs = 0, allocated = 0;
+        double signal = 0, noise = 0;
+        for (int r = 0; r < rounds; r++) {
+            long allocStart = allocatedBytes();
+            long start = System.nanoTime();
+            for (int f = 0; f < frames; f++) {
+                int n = p.encode(voice[f], f, encoded);
+                if (r == 0) {
+                    bytes += n;
+                    data[f] = new byte[n]; //what a SoundPacket would carry
+                    System.arraycopy(encoded[f], 0, data[f], 0, n);
+                }
+            }
+            encodeNs += System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int f = 0; f < frames; f++) {
+                p.decode(data[f], decoded);
+                if (r == 0) {
+                    for (int i = 0; i < FRAME; i++) {
+                        signal += voice[f][i] * voice[f][i];
+                        noise += (voice[f][i] - decoded[i]) * (voice[f][i] - decoded[i]);
+                    }
+                }
+            }
+            decodeNs += System.nanoTime() - start;
+            if (r > 0) { //the first round allocates the data of the packets
+                allocated += allocatedBytes() - allocStart;
+            }
+        }
+        if (print) {
+            double perFrame = bytes / (double) frames;
+            System.out.printf("%-13s encode %6dns/frame  decode %6dns/frame  %6.1f bytes/frame  %6.0f bytes/s  SNR %-8s  allocated %5d bytes/frame%n", p.name(),
+                    encodeNs / rounds / frames, decodeNs / rounds / frames, perFrame, perFrame * RATE / FRAME,
+                    noise == 0 ? "lossless" : String.format("%.1fdB", 10 * Math.log10(signal / noise)),
+                    rounds > 1 ? allocated / (rounds - 1) / frames : 0);
+        }
+    }
+
+    private static long allocatedBytes() { //by this thread, so far
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,162 @@
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * compares the ways the server can serve its clients: a polling ClientThread
+ * per client (THREADS), blocking reader and writer threads (BLOCKING), the same
+ * on virtual threads (VIRTUAL) and the NIO EventLoops. each mode runs in its
+ * own JVM, which starts a server, opens many idle connections to it and
+ * measures how long they took to connect, the threads and heap they cost, the
+ * CPU burnt while they're all idle, and the latency of a frame going from a
+ * speaker to a listener through the server.
+ * usage: ConnectionBench [connections] [idle seconds] [frames]
+ * or ConnectionBench MODE [connections] [idle seconds] [frames] for one mode.
+ * run with "ant bench -Dbench.class=ConnectionBench"
+ *
+ */
+public class ConnectionBench {
+
+    private static final String ROOM = "bench"; //the speaker and the listener talk in here, so the idle connections don't receive their frames
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && !Character.isDigit(args[0].charAt(0))) {
+            run(ServerMode.valueOf(args[0].toUpperCase()), Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (ServerMode mode : ServerMode.values()) { //a fresh JVM for each mode, so they don't see each other's threads and garbage
+            ArrayList<String> cmd = new ArrayList<String>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"), ConnectionBench.class.getName(), mode.name()));
+            cmd.addAll(Arrays.asList(args));
+            Process p = new ProcessBuilder(cmd).inheritIO().start();
+            if (p.waitFor() != 0) {
+                System.out.println(mode + " failed");
+            }
+        }
+    }
+
+    private static void run(ServerMode mode, String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500; //the polling THREADS mode saturates a small machine with many more
+        int idleSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        ServerSocket free = new ServerSocket(0); //find a free port for the server
+        final ServerConfig c = new ServerConfig();
+        c.setPort(free.getLocalPort());
+        free.close();
+        c.setUpnp(false);
+        c.setUdp(false); //everything over TCP, which is what the modes change
+        c.setMode(mode);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new Server(c);
+                } catch (Exception ex) {
+                    System.out.println("server error " + ex);
+                    System.exit(1);
+                }
+            }
+        }.start();
+        Utils.sleep(500);
+        if (mode == ServerMode.VIRTUAL && !Threads.virtualSupported()) {
+            System.out.println("(no virtual threads in this JVM, VIRTUAL falls back to BLOCKING)");
+        }
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long baseHeap = usedHeap();
+        Conn[] idle = new Conn[connections];
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            idle[i] = new Conn(c.getPort());
+        }
+        long connectMs = (System.nanoTime() - start) / 1000000L;
+        Utils.sleep(1000); //let the server settle
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+        long heap = usedHeap() - baseHeap;
+        long cpu = cpuTime();
+        Utils.sleep(idleSeconds * 1000);
+        double idleCpu = (cpuTime() - cpu) / (idleSeconds * 10000000.0); //% of one core
+        Conn speaker = new Conn(c.getPort()), listener = new Conn(c.getPort());
+        speaker.join();
+        listener.join();
+        long[] lat = new long[frames];
+        byte[] sound = new byte[200];
+        for (int i = 0; i < frames; i++) {
+            long t = System.nanoTime();
+            speaker.send(new Message(-1, -1, new SoundPacket(sound)));
+            listener.read();
+            lat[i] = System.nanoTime() - t;
+            Utils.sleep(20); //a frame every 20ms, like a client
+        }
+        Arrays.sort(lat);
+        System.out.printf("%-9s %d connections in %dms  threads +%d  heap +%dKB/connection  idle CPU %.1f%%  latency p50 %dus  p99 %dus  max %dus%n",
+                mode, connections, connectMs, threads, heap / 1024 / Math.max(1, connections), idleCpu,
+                lat[frames / 2] / 1000, lat[Math.min(frames - 1, frames * 99 / 100)] / 1000, lat[frames - 1] / 1000);
+        System.exit(0);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    private static long cpuTime() { //ns of CPU used by this process
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /**
+     * a client speaking the binary protocol, without any threads of its own
+     */
+    private static class Conn {
+
+        private Socket s;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private int version; //of the binary protocol, as negotiated
+        private ByteBuffer frame; //allocated only by the connections that send, so the idle ones don't count in the heap used by the server
+
+        private Conn(int port) throws IOException {
+            s = new Socket("localhost", port);
+            in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            out = new DataOutputStream(s.getOutputStream());
+            in.readFully(new byte[FrameCodec.OBJECT_STREAM_HEADER.length]);
+            FrameCodec.writeHello(out);
+            version = FrameCodec.readHelloReply(in);
+        }
+
+        private void send(Message m) throws IOException {
+            if (frame == null) {
+                frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME + 4);
+            }
+            frame.clear();
+            FrameCodec.encode(m, frame, false, version);
+            out.write(frame.array(), 0, frame.position());
+        }
+
+        private Message read() throws IOException {
+            return FrameCodec.read(in, version);
+        }
+
+        private void join() throws IOException {
+            send(new Message(-1, -1, new RoomControl(RoomControl.JOIN, ROOM)));
+            while (!(read().getData() instanceof RoomControl)) { //wait for the server to move us
+            }
+        }
+    }
+}
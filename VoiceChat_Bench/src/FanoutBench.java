@@ -0,0 +1,58 @@
+
+import java.net.InetAddress;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * JMH microbenchmark of the BroadcastThread giving a frame to the members of
+ * a room, then their senders taking it. the frame goes through the server's
+ * own dispatch code, on a detached Server: encoded once, queued for every
+ * member but the sender, and written out by each of them
+ * measured by bench.Fanout, run with "ant jmh -Dbench.args=Fanout"
+ *
+ */
+public class FanoutBench implements bench.Fanout.Ops {
+
+    private static final int FRAMES = 50; //different frames, cycled through
+    private int members;
+    private Server server;
+    private ClientConnection[] room;
+    private Message[] messages = new Message[FRAMES];
+    private int n = 0;
+
+    @Override
+    public void setup(int members) {
+        this.members = members;
+        ServerConfig config = new ServerConfig();
+        config.setFormat(SessionFormat.LEGACY); //nobody needs resampling
+        server = Server.detached(config);
+        room = new ClientConnection[members];
+        for (int i = 0; i < members; i++) {
+            room[i] = new ClientConnection(server, InetAddress.getLoopbackAddress(), i, config.getQueueSize());
+            room[i].negotiated(FrameCodec.VERSION);
+            server.dispatch(room[i], null); //everybody in the lobby
+        }
+        byte[][] voice = Voice.voice(FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            messages[i] = new Message(room[0].getChId(), 0, new SoundPacket(voice[i]));
+            messages[i].setTtl(server.getTtl());
+        }
+    }
+
+    @Override
+    public long fanout() {
+        Message m = messages[n++ % FRAMES];
+        m.setTimestamp(System.nanoTime() / 1000000L); //so it never expires in the queues
+        server.dispatch(room[0], m);
+        long bytes = 0;
+        for (int i = 1; i < members; i++) {
+            SharedFrame f = room[i].nextToSend();
+            bytes += f.length(FrameCodec.VERSION);
+            f.release();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,676 @@
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * capacity test: many synthetic clients, all in this JVM, speaking the binary
+ * protocol without any sound card. they join rooms of a few people and talk
+ * like people do: talkspurts and silences of random length (exponential, like
+ * Brady's model of conversations), sending a silence frame when they stop and
+ * nothing until they talk again. what they send is a recording (raw 16 bit
+ * signed little endian mono PCM at the rate of the session) or a synthetic
+ * voice, encoded once with the codec the server picked.
+ * each frame carries, over its last bytes, the time it was sent and the
+ * sender's frame number, so the listeners measure the latency from the
+ * sender's write to their read and find the frames that never arrived. a few
+ * threads read all the connections with selectors; one thread sends for
+ * everybody, every frame duration.
+ * unless a host is given, the server under test runs in a JVM of its own
+ * (configured with the voicechat.* system properties of this one, see
+ * ServerConfig), so its CPU is measured apart from the clients'.
+ * in mixing mode the latency and the loss can't be measured, the frames
+ * received are the server's mix, and the frames aren't stamped (-nostamp with
+ * a server that isn't ours) since the server decodes them: the stamp would
+ * break the GZIP and DEFLATE codecs. in active speaker mode the frames that
+ * weren't forwarded count as lost.
+ * usage: LoadGenerator [-clients 500] [-room 10] [-talk 0.35] [-spurt 1000]
+ * [-seconds 30] [-warmup 5] [-udp] [-nostamp] [-pcm file] [-codec name]
+ * [-readers n] [-host host -port port]
+ * run with "ant bench -Dbench.class=LoadGenerator -Dbench.args='-clients 2000'"
+ *
+ */
+public class LoadGenerator {
+
+    private static final String ROOM = "load-";
+    private static final int STAMP = 12; //bytes over the end of each frame: send time (ns) and frame number
+    private static final int BUFFER = 4096; //bytes buffered for each connection, each way
+    private static final int SYNTHETIC_FRAMES = 250; //frames of synthetic voice, played in a loop
+    private static final long REGISTER_INTERVAL = 500000000L; //ns between UDP registration attempts
+    private static final int REGISTER_ATTEMPTS = 10;
+    private static final long REPORT_INTERVAL = 5000000000L; //ns between progress lines
+    private int clients = 500;
+    private int roomSize = 10;
+    private double talk = 0.35; //fraction of the time each client talks
+    private int spurtMs = 1000; //average talkspurt
+    private int seconds = 30;
+    private int warmupSeconds = 5;
+    private boolean udp = false;
+    private boolean stamped = true;
+    private String pcmFile;
+    private String codecName;
+    private int nReaders = Runtime.getRuntime().availableProcessors();
+    private String host;
+    private int port;
+    private Process server; //null if the server isn't ours
+    private volatile long serverCpu = -1; //ns, as last reported by the server's JVM
+    private volatile SessionFormat format; //as told by the server
+    private volatile int codec = -1; //as picked by the server
+    private byte[][] frames; //encoded, played in a loop by every client
+    private int[] levels; //of each frame
+    private volatile Stats total = new Stats(), interval = new Stats();
+    private Reader[] readers;
+    private ArrayList<Conn> conns = new ArrayList<Conn>();
+    private ByteBuffer datagram = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM); //used by the sending thread
+
+    private static class Stats {
+
+        private final Counter sent = new Counter(), expected = new Counter(), notSent = new Counter();
+        private final Counter received = new Counter(), lost = new Counter(), mixed = new Counter();
+        private final Histogram latency = new Histogram(); //ns
+    }
+
+    /**
+     * a synthetic client
+     */
+    private class Conn {
+
+        private final int room;
+        private final int listeners; //other members of its room
+        private SocketChannel tcp;
+        private int version; //of the binary protocol, as negotiated
+        private volatile DatagramChannel media; //null until the server offers UDP, if we use it
+        private volatile MediaSession session;
+        private volatile boolean registered = false; //the server echoed our UDP registration
+        private volatile boolean joined = false; //the server moved us to our room
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER); //what the socket hasn't taken yet
+        private ByteBuffer datagram = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM); //used by its Reader
+        private LongMap<int[]> lastSeq = new LongMap<int[]>(); //frame number last received from each sender. used only by its Reader
+        private boolean talking = false; //used only by the sending thread, like what follows
+        private long switchAt; //ns, when talking starts or stops
+        private int seq = 0, frame, attempts = 0;
+        private long lastRegister = 0;
+
+        private Conn(int index) {
+            room = index / roomSize;
+            listeners = Math.min(roomSize, clients - room * roomSize) - 1;
+            frame = ThreadLocalRandom.current().nextInt(1 << 20); //everybody says something different
+        }
+    }
+
+    /**
+     * reads the connections it was given, with a selector
+     */
+    private class Reader extends Thread {
+
+        private Selector selector = Selector.open();
+        private ConcurrentLinkedQueue<Conn> pending = new ConcurrentLinkedQueue<Conn>();
+
+        private Reader() throws IOException {
+            setDaemon(true);
+        }
+
+        private void add(Conn c) {
+            pending.offer(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    selector.select();
+                    for (Conn c; (c = pending.poll()) != null;) {
+                        c.tcp.register(selector, SelectionKey.OP_READ, c);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey k = keys.next();
+                        keys.remove();
+                        Conn c = (Conn) k.attachment();
+                        try {
+                            if (k.channel() == c.tcp) {
+                                readTcp(c, k);
+                            } else {
+                                readUdp(c);
+                            }
+                        } catch (IOException ex) { //lost the connection, or garbage from the server
+                            System.out.println("connection error " + ex);
+                            k.cancel();
+                            c.tcp.close();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println("reader error " + ex);
+            }
+        }
+
+        private void readTcp(Conn c, SelectionKey k) throws IOException {
+            if (c.tcp.read(c.in) < 0) {
+                throw new IOException("closed by the server");
+            }
+            c.in.flip();
+            for (Message m; (m = FrameCodec.decode(c.in, c.version)) != null;) {
+                received(c, m);
+            }
+            c.in.compact();
+            if (!c.in.hasRemaining()) { //a frame longer than the buffer
+                ByteBuffer b = ByteBuffer.allocate(c.in.capacity() * 2);
+                c.in.flip();
+                b.put(c.in);
+                c.in = b;
+            }
+        }
+
+        private void readUdp(Conn c) throws IOException {
+            ByteBuffer b = c.datagram;
+            for (;;) {
+                b.clear();
+                if (c.media.read(b) == 0) {
+                    return;
+                }
+                b.flip();
+                Message m;
+                try {
+                    m = FrameCodec.decodeDatagram(b);
+                } catch (IOException ex) { //corrupted, lost like any datagram can be
+                    continue;
+                }
+                if (m.getData() instanceof MediaSession) {
+                    c.registered |= ((MediaSession) m.getData()).getToken() == c.session.getToken();
+                } else {
+                    received(c, m);
+                }
+            }
+        }
+
+        private void received(Conn c, Message m) throws IOException {
+            Object data = m.getData();
+            if (data instanceof SoundPacket) {
+                byte[] sound = ((SoundPacket) data).getData();
+                if (sound != null) {
+                    heard(c, m.getChId(), sound);
+                }
+            } else if (data instanceof RoomControl) {
+                c.joined = ((RoomControl) data).getRoom().equals(ROOM + c.room);
+            } else if (data instanceof SessionFormat) {
+                format = (SessionFormat) data;
+            } else if (data instanceof CodecList) {
+                codec = ((CodecList) data).getIds()[0];
+            } else if (data instanceof MediaSession && udp) {
+                c.session = (MediaSession) data;
+                DatagramChannel d = DatagramChannel.open();
+                d.connect(new InetSocketAddress(c.tcp.socket().getInetAddress(), c.session.getPort()));
+                d.configureBlocking(false);
+                d.register(selector, SelectionKey.OP_READ, c);
+                c.media = d;
+            }
+        }
+
+        private void heard(Conn c, long from, byte[] sound) {
+            Stats t = total, i = interval;
+            if (from == Mixer.MIX_CHID) { //the server's mix, it has no stamp
+                t.mixed.increment();
+                i.mixed.increment();
+                return;
+            }
+            t.received.increment();
+            i.received.increment();
+            if (!stamped || sound.length < STAMP) {
+                return;
+            }
+            ByteBuffer b = ByteBuffer.wrap(sound);
+            long latency = System.nanoTime() - b.getLong(sound.length - STAMP);
+            int seq = b.getInt(sound.length - 4);
+            t.latency.record(latency);
+            i.latency.record(latency);
+            int[] last = c.lastSeq.get(from);
+            if (last == null) {
+                c.lastSeq.put(from, new int[]{seq});
+            } else if (seq - last[0] > 0) {
+                t.lost.add(seq - last[0] - 1);
+                i.lost.add(seq - last[0] - 1);
+                last[0] = seq;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("server")) {
+            serve();
+            return;
+        }
+        new LoadGenerator(args).run();
+    }
+
+    /**
+     * runs the server under test, and reports the CPU it uses every second
+     */
+    private static void serve() {
+        final ServerConfig c = ServerConfig.fromSystemProperties();
+        c.setUpnp(false);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new Server(c);
+                } catch (Exception ex) {
+                    System.out.println("server error " + ex);
+                    System.exit(1);
+                }
+            }
+        }.start();
+        for (;;) {
+            System.out.println("cpu " + cpuTime());
+            Utils.sleep(1000);
+        }
+    }
+
+    private LoadGenerator(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-udp")) {
+                udp = true;
+                continue;
+            }
+            if (a.equals("-nostamp")) {
+                stamped = false;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("no value for " + a);
+            }
+            String v = args[++i];
+            if (a.equals("-clients")) {
+                clients = Integer.parseInt(v);
+            } else if (a.equals("-room")) {
+                roomSize = Math.max(2, Integer.parseInt(v));
+            } else if (a.equals("-talk")) {
+                talk = Math.max(0.01, Math.min(1, Double.parseDouble(v)));
+            } else if (a.equals("-spurt")) {
+                spurtMs = Integer.parseInt(v);
+            } else if (a.equals("-seconds")) {
+                seconds = Integer.parseInt(v);
+            } else if (a.equals("-warmup")) {
+                warmupSeconds = Integer.parseInt(v);
+            } else if (a.equals("-pcm")) {
+                pcmFile = v;
+            } else if (a.equals("-codec")) {
+                codecName = v;
+            } else if (a.equals("-readers")) {
+                nReaders = Math.max(1, Integer.parseInt(v));
+            } else if (a.equals("-host")) {
+                host = v;
+            } else if (a.equals("-port")) {
+                port = Integer.parseInt(v);
+            } else {
+                throw new IllegalArgumentException("unknown option " + a);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        if (host == null) {
+            startServer();
+            stamped &= !Boolean.getBoolean("voicechat.mixing");
+        }
+        readers = new Reader[nReaders];
+        for (int i = 0; i < nReaders; i++) {
+            readers[i] = new Reader();
+            readers[i].start();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            try {
+                conns.add(connect(i));
+            } catch (IOException ex) {
+                System.out.println("connection " + i + " failed: " + ex);
+                break;
+            }
+        }
+        System.out.printf("%d connections in %dms%n", conns.size(), (System.nanoTime() - start) / 1000000L);
+        long deadline = System.nanoTime() + 10000000000L;
+        while ((format == null || codec < 0 || !allJoined()) && System.nanoTime() < deadline) {
+            Utils.sleep(100);
+        }
+        if (format == null || codec < 0) {
+            System.out.println("the server didn't tell the format and the codec");
+            shutdown(1);
+        }
+        prepareFrames();
+        System.out.printf("%d clients in rooms of %d, talking %.0f%% of the time in %dms spurts, %s at %dHz, %dms frames%n",
+                conns.size(), roomSize, talk * 100, spurtMs, Codecs.create(codec).getName(), format.getSampleRate(), format.getFrameMs());
+        send();
+        shutdown(0);
+    }
+
+    private void startServer() throws Exception {
+        ServerSocket free = new ServerSocket(0); //find a free port for the server
+        port = free.getLocalPort();
+        free.close();
+        host = "127.0.0.1";
+        ArrayList<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("voicechat.")) {
+                cmd.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        cmd.add("-Dvoicechat.port=" + port);
+        cmd.add("-Dvoicechat.udp=" + udp);
+        cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), LoadGenerator.class.getName(), "server"));
+        server = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.destroy();
+            }
+        });
+        final BufferedReader out = new BufferedReader(new InputStreamReader(server.getInputStream()));
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (String line; (line = out.readLine()) != null;) {
+                        if (line.startsWith("cpu ")) {
+                            serverCpu = Long.parseLong(line.substring(4));
+                        } else {
+                            System.out.println("server: " + line);
+                        }
+                    }
+                } catch (IOException ex) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        long deadline = System.nanoTime() + 10000000000L;
+        for (;;) { //wait until it accepts connections
+            try {
+                SocketChannel.open(new InetSocketAddress(host, port)).close();
+                Utils.sleep(200); //the first connection is in its queue, let it go before ours come
+                return;
+            } catch (IOException ex) {
+                if (System.nanoTime() > deadline) {
+                    throw ex;
+                }
+                Utils.sleep(100);
+            }
+        }
+    }
+
+    private Conn connect(int index) throws IOException {
+        Conn c = new Conn(index);
+        c.tcp = SocketChannel.open(new InetSocketAddress(host, port));
+        c.tcp.socket().setTcpNoDelay(true);
+        c.tcp.socket().setSoTimeout(10000);
+        DataInputStream in = new DataInputStream(c.tcp.socket().getInputStream()); //not buffered, so it doesn't read beyond the reply
+        DataOutputStream out = new DataOutputStream(c.tcp.socket().getOutputStream());
+        in.readFully(new byte[FrameCodec.OBJECT_STREAM_HEADER.length]);
+        FrameCodec.writeHello(out);
+        c.version = FrameCodec.readHelloReply(in);
+        if (c.version < FrameCodec.FORMAT_VERSION) {
+            throw new IOException("the server is too old");
+        }
+        byte[] codecs = Codecs.getSupported();
+        if (codecName != null) {
+            codecs = new byte[]{(byte) codecId(codecName)};
+        }
+        c.out.clear();
+        FrameCodec.encode(new Message(-1, -1, new CodecList(codecs)), c.out, false, c.version);
+        FrameCodec.encode(new Message(-1, -1, new RoomControl(RoomControl.JOIN, ROOM + c.room)), c.out, false, c.version);
+        out.write(c.out.array(), 0, c.out.position());
+        c.out.clear();
+        c.tcp.configureBlocking(false);
+        readers[index % readers.length].add(c);
+        return c;
+    }
+
+    private static int codecId(String name) {
+        for (byte id : Codecs.getSupported()) {
+            if (Codecs.create(id).getName().equalsIgnoreCase(name)) {
+                return id;
+            }
+        }
+        throw new IllegalArgumentException("unknown codec " + name);
+    }
+
+    private boolean allJoined() {
+        for (Conn c : conns) {
+            if (!c.joined) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void prepareFrames() throws IOException { //encodes what the clients say, once for all of them
+        int len = format.getFrameSamples();
+        short[] pcm = pcmFile == null ? Voice.pcm(format.getSampleRate(), len * SYNTHETIC_FRAMES) : read(pcmFile);
+        int n = Math.max(1, pcm.length / len);
+        SpeechCodec c = Codecs.create(codec);
+        byte[] encoded = new byte[c.maxEncodedLength(len)];
+        short[] frame = new short[len];
+        frames = new byte[n][];
+        levels = new int[n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(pcm, i * len, frame, 0, Math.min(len, pcm.length - i * len));
+            frames[i] = Arrays.copyOf(encoded, Math.max(STAMP, c.encode(frame, len, encoded)));
+            long tot = 0;
+            for (short s : frame) {
+                tot += Math.abs(s);
+            }
+            levels[i] = (int) Math.min(Byte.MAX_VALUE, tot / len >> 8); //average amplitude, like the clients
+        }
+    }
+
+    private static short[] read(String file) throws IOException { //16 bit signed little endian
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] b = new byte[(int) new File(file).length() & ~1];
+            new DataInputStream(in).readFully(b);
+            short[] pcm = new short[b.length / 2];
+            ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(pcm);
+            return pcm;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * sends for every client until the end of the test, a frame every frame
+     * duration, then reports
+     */
+    private void send() {
+        long tick = format.getFrameMs() * 1000000L;
+        long start = System.nanoTime();
+        long measureStart = start + warmupSeconds * 1000000000L, end = measureStart + seconds * 1000000000L;
+        for (Conn c : conns) { //everybody starts quiet, for a random time
+            c.switchAt = start + duration(false);
+        }
+        boolean measuring = false;
+        long nextReport = measureStart + REPORT_INTERVAL, serverCpuStart = 0, cpuStart = 0;
+        long ticks = 0;
+        int talking = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            if (!measuring && now >= measureStart) {
+                measuring = true;
+                total = new Stats();
+                interval = new Stats();
+                serverCpuStart = serverCpu;
+                cpuStart = cpuTime();
+            }
+            talking = 0;
+            for (Conn c : conns) {
+                if (now >= c.switchAt) {
+                    c.talking = !c.talking;
+                    c.switchAt = now + duration(c.talking);
+                    if (!c.talking) { //tell the others, then stop sending
+                        send(c, new Message(-1, -1, new SoundPacket(null)), null);
+                    }
+                }
+                if (c.talking) {
+                    talking++;
+                    int f = c.frame++ % frames.length;
+                    Message m = new Message(-1, -1, new SoundPacket(frames[f], codec));
+                    m.setLevel(levels[f]);
+                    send(c, m, frames[f]);
+                }
+                if (c.media != null && !c.registered && c.attempts < REGISTER_ATTEMPTS && now - c.lastRegister > REGISTER_INTERVAL) {
+                    register(c, now);
+                }
+            }
+            if (measuring && now >= nextReport) {
+                Stats s = interval;
+                interval = new Stats();
+                System.out.printf("%3ds  talking %5d  sent %7d/s  received %8d/s  lost %6d  latency p50 %6.2fms  p99 %7.2fms%n",
+                        (now - measureStart) / 1000000000L, talking, s.sent.sum() * 1000000000L / REPORT_INTERVAL, s.received.sum() * 1000000000L / REPORT_INTERVAL,
+                        s.lost.sum(), s.latency.getPercentile(0.5) / 1e6, s.latency.getPercentile(0.99) / 1e6);
+                nextReport += REPORT_INTERVAL;
+            }
+            ticks++;
+            long wait = start + ticks * tick - System.nanoTime(); //scheduled from the start, so ticks don't drift
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        long elapsed = System.nanoTime() - measureStart;
+        double serverLoad = serverCpu - serverCpuStart, load = cpuTime() - cpuStart;
+        Utils.sleep(500); //let the last frames arrive
+        report(elapsed, server == null ? -1 : serverLoad * 100 / elapsed, load * 100 / elapsed);
+    }
+
+    private long duration(boolean talking) { //ns of a talkspurt or a silence, exponentially distributed
+        double mean = talking ? spurtMs : spurtMs * (1 - talk) / talk;
+        return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * mean * 1000000L);
+    }
+
+    /**
+     * sends a message, stamped if sound isn't null, over UDP if the server
+     * registered the client, otherwise over TCP
+     */
+    private void send(Conn c, Message m, byte[] sound) {
+        Stats t = total, i = interval;
+        try {
+            m.setSeq(c.seq);
+            if (c.registered) {
+                ByteBuffer b = datagram;
+                b.clear();
+                FrameCodec.encodeDatagram(m, b, true);
+                stamp(c, b, sound);
+                b.flip();
+                if (c.media.write(b) == 0) { //the socket buffer is full
+                    t.notSent.increment();
+                    i.notSent.increment();
+                    return;
+                }
+            } else {
+                flush(c);
+                if (c.out.remaining() < FrameCodec.encodedLength(m, true) + 4) { //the server doesn't keep up
+                    t.notSent.increment();
+                    i.notSent.increment();
+                    return;
+                }
+                FrameCodec.encode(m, c.out, true, c.version);
+                stamp(c, c.out, sound);
+                flush(c);
+            }
+        } catch (IOException ex) { //the reader will notice the connection is gone
+            return;
+        }
+        if (sound != null) {
+            c.seq++;
+            t.sent.increment();
+            i.sent.increment();
+            t.expected.add(c.listeners);
+        }
+    }
+
+    private void stamp(Conn c, ByteBuffer b, byte[] sound) { //the sound is at the end of the frame
+        if (sound != null && stamped) {
+            b.putLong(b.position() - STAMP, System.nanoTime());
+            b.putInt(b.position() - 4, c.seq);
+        }
+    }
+
+    private void flush(Conn c) throws IOException { //writes what the socket takes
+        if (c.out.position() > 0) {
+            c.out.flip();
+            c.tcp.write(c.out);
+            c.out.compact();
+        }
+    }
+
+    private void register(Conn c, long now) {
+        Message m = new Message(-1, -1, c.session);
+        ByteBuffer b = ByteBuffer.allocate(FrameCodec.encodedLength(m) + 4);
+        FrameCodec.encodeDatagram(m, b);
+        b.flip();
+        try {
+            c.media.write(b);
+        } catch (IOException ex) { //try again later
+        }
+        c.attempts++;
+        c.lastRegister = now;
+    }
+
+    private void report(long elapsed, double serverLoad, double load) {
+        Stats s = total;
+        int onUdp = 0;
+        for (Conn c : conns) {
+            onUdp += c.registered ? 1 : 0;
+        }
+        Histogram h = s.latency;
+        long sent = s.sent.sum(), expected = s.expected.sum(), received = s.received.sum(), lost = s.lost.sum();
+        System.out.printf("%ds measured, %d clients (%d over UDP)%n", elapsed / 1000000000L, conns.size(), onUdp);
+        System.out.printf("sent %d frames (%.0f/s), %d not sent because a socket was full%n", sent, sent * 1e9 / elapsed, s.notSent.sum());
+        if (s.mixed.sum() > 0) {
+            System.out.printf("received %d mixed frames (%.0f/s), latency and loss unknown in mixing mode%n", s.mixed.sum(), s.mixed.sum() * 1e9 / elapsed);
+        } else {
+            System.out.printf("received %d frames of %d expected (%.0f/s), lost %d (%.3f%%)%n", received, expected, received * 1e9 / elapsed, lost,
+                    lost * 100.0 / Math.max(1, received + lost));
+            System.out.printf("latency p50 %.2fms  p90 %.2fms  p99 %.2fms  p99.9 %.2fms  max %.2fms%n", h.getPercentile(0.5) / 1e6, h.getPercentile(0.9) / 1e6,
+                    h.getPercentile(0.99) / 1e6, h.getPercentile(0.999) / 1e6, h.getMax() / 1e6);
+        }
+        System.out.printf("server CPU %s, load generator CPU %.1f%% (%% of one core)%n", serverLoad < 0 ? "not measured (external server)" : String.format("%.1f%%", serverLoad), load);
+    }
+
+    private void shutdown(int status) {
+        if (server != null) {
+            server.destroy();
+        }
+        System.exit(status);
+    }
+
+    private static long cpuTime() { //ns of CPU used by this process
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
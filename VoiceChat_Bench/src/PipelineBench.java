@@ -0,0 +1,158 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * JMH microbenchmarks of the server's hot paths: a Message with its
+ * SoundPacket written and read with Java serialization (old clients) and with
+ * the FrameCodec, and 8 bit frames compressed with a GZIP stream for each frame
+ * (what MicThread and AudioChannel used to do) and with the pooled GzipCodec.
+ * the frames are 900 samples of the synthetic Voice, like the ones old
+ * clients send.
+ * measured by bench.Pipeline, run with "ant jmh -Dbench.args=Pipeline"
+ *
+ */
+public class PipelineBench implements bench.Pipeline.Ops {
+
+    private static final int FRAME = SoundPacket.defaultDataLenght;
+    private static final int FRAMES = 50; //different frames, cycled through
+    private static final int OBJECTS = 1000; //messages in the serialized stream that is read back
+    private byte[][] voice;
+    private byte[][] gzipped = new byte[FRAMES][];
+    private Message[] messages = new Message[FRAMES];
+    private SpeechCodec gzip = Codecs.create(Codecs.GZIP);
+    private short[] pcm = new short[FRAME];
+    private byte[] encoded = new byte[gzip.maxEncodedLength(FRAME)];
+    private ByteArrayOutputStream objectBytes = new ByteArrayOutputStream();
+    private ObjectOutputStream oos;
+    private ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME + 4);
+    private byte[] objects; //OBJECTS messages written by an ObjectOutputStream
+    private ObjectInputStream objectsIn;
+    private int objectsRead = OBJECTS; //from objectsIn
+    private byte[] frames; //the FRAMES messages encoded by the FrameCodec
+    private DataInputStream framesIn;
+    private int framesRead = FRAMES; //from framesIn
+    private int n = 0; //calls so far, to cycle through the frames
+
+    @Override
+    public void setup() throws IOException {
+        voice = Voice.voice(FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            Codecs.toPcm16(voice[i], FRAME, pcm);
+            gzipped[i] = new byte[gzip.encode(pcm, FRAME, encoded)];
+            System.arraycopy(encoded, 0, gzipped[i], 0, gzipped[i].length);
+            messages[i] = new Message(12345, System.nanoTime() / 1000000L, new SoundPacket(gzipped[i]));
+        }
+        oos = new ObjectOutputStream(objectBytes);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(stream);
+        for (int i = 0; i < OBJECTS; i++) {
+            if (i > 0 && i % FrameCodec.OBJECT_STREAM_RESET_INTERVAL == 0) {
+                out.reset();
+            }
+            out.writeObject(messages[i % FRAMES]);
+        }
+        out.close();
+        objects = stream.toByteArray();
+        stream.reset();
+        for (int i = 0; i < FRAMES; i++) {
+            frame.clear();
+            FrameCodec.encode(messages[i], frame);
+            stream.write(frame.array(), 0, frame.position());
+        }
+        frames = stream.toByteArray();
+    }
+
+    @Override
+    public int serializeObjectStream() throws IOException { //like StreamTransport: one stream, reset every so often
+        if (++n % FrameCodec.OBJECT_STREAM_RESET_INTERVAL == 0) {
+            oos.reset();
+        }
+        objectBytes.reset();
+        oos.writeObject(messages[n % FRAMES]);
+        oos.flush();
+        return objectBytes.size();
+    }
+
+    @Override
+    public int serializeFrameCodec() {
+        frame.clear();
+        FrameCodec.encode(messages[n++ % FRAMES], frame);
+        return frame.position();
+    }
+
+    @Override
+    public int serializeSharedFrame() { //what the BroadcastThread does once per frame: encode into a pooled direct buffer
+        SharedFrame f = SharedFrame.encode(messages[n++ % FRAMES]);
+        int len = f.length();
+        f.release();
+        return len;
+    }
+
+    @Override
+    public long deserializeObjectStream() throws IOException, ClassNotFoundException { //the stream is opened again after the last message, once every OBJECTS calls
+        if (objectsRead == OBJECTS) {
+            objectsIn = new ObjectInputStream(new ByteArrayInputStream(objects));
+            objectsRead = 0;
+        }
+        objectsRead++;
+        return ((Message) objectsIn.readObject()).getTimestamp();
+    }
+
+    @Override
+    public long deserializeFrameCodec() throws IOException { //like StreamTransport, from a stream
+        if (framesRead == FRAMES) {
+            framesIn = new DataInputStream(new ByteArrayInputStream(frames));
+            framesRead = 0;
+        }
+        framesRead++;
+        return FrameCodec.read(framesIn).getTimestamp();
+    }
+
+    @Override
+    public int gzipStreamsCompress() throws IOException { //what MicThread used to do for each frame
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream go = new GZIPOutputStream(baos);
+        go.write(voice[n++ % FRAMES]);
+        go.close();
+        return baos.toByteArray().length;
+    }
+
+    @Override
+    public int gzipStreamsDecompress() throws IOException { //what AudioChannel used to do for each frame
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(gzipped[n++ % FRAMES]));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (;;) {
+            int c = gis.read();
+            if (c == -1) {
+                break;
+            }
+            baos.write((byte) c);
+        }
+        return baos.toByteArray().length;
+    }
+
+    @Override
+    public int gzipCodecCompress() {
+        Codecs.toPcm16(voice[n++ % FRAMES], FRAME, pcm);
+        return gzip.encode(pcm, FRAME, encoded);
+    }
+
+    @Override
+    public int gzipCodecDecompress() throws IOException {
+        byte[] data = gzipped[n++ % FRAMES];
+        return gzip.decode(data, data.length, pcm);
+    }
+}
@@ -0,0 +1,67 @@
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * measures the Resampler on the conversions the clients and the server do:
+ * the time to convert a second of audio, and the signal to noise ratio of a
+ * tone in the passband (against the exact tone at the output rate, delayed
+ * like the filter delays it) and of a tone above the output's Nyquist
+ * frequency, which must disappear.
+ * usage: ResamplerBench [seconds]
+ * run with "ant bench -Dbench.class=ResamplerBench"
+ *
+ */
+public class ResamplerBench {
+
+    private static final int[][] CONVERSIONS = {{11025, 16000}, {16000, 11025}, {48000, 16000}, {16000, 48000}, {44100, 16000}, {8000, 48000}, {48000, 8000}};
+    private static final int FRAME_MS = 20;
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        for (int[] c : CONVERSIONS) { //warmup
+            run(c[0], c[1], 2, false);
+        }
+        for (int[] c : CONVERSIONS) {
+            run(c[0], c[1], seconds, true);
+        }
+    }
+
+    private static void run(int inRate, int outRate, int seconds, boolean print) {
+        int frame = inRate * FRAME_MS / 1000;
+        double tone = Math.min(inRate, outRate) * 0.2; //well inside the passband
+        double alias = Math.min(inRate, outRate) * 0.6; //above the lower Nyquist frequency
+        Resampler r = new Resampler(inRate, outRate);
+        short[] in = new short[frame];
+        short[] out = new short[r.maxOutput(frame)];
+        long ns = 0;
+        long produced = 0;
+        double signal = 0, noise = 0, leaked = 0;
+        double delay = r.getDelay();
+        for (int f = 0; f < seconds * 1000 / FRAME_MS; f++) {
+            for (int i = 0; i < frame; i++) {
+                double t = (f * frame + i) / (double) inRate;
+                in[i] = (short) Math.round(10000 * Math.sin(2 * Math.PI * tone * t) + (inRate > outRate ? 10000 * Math.sin(2 * Math.PI * alias * t) : 0));
+            }
+            long start = System.nanoTime();
+            int n = r.process(in, frame, out);
+            ns += System.nanoTime() - start;
+            for (int i = 0; i < n; i++) {
+                double t = (produced + i) / (double) outRate - delay;
+                if (t > 0.1) { //after the filter has filled
+                    double expected = 10000 * Math.sin(2 * Math.PI * tone * t);
+                    signal += expected * expected;
+                    noise += (out[i] - expected) * (out[i] - expected);
+                }
+            }
+            produced += n;
+        }
+        if (print) {
+            System.out.printf("%5d -> %5d  %6.2fms per second of audio  output %d samples/s  SNR %.1fdB%s%n", inRate, outRate,
+                    ns / 1e6 / seconds, produced / seconds, 10 * Math.log10(signal / noise),
+                    inRate > outRate ? " (with a tone at " + (int) alias + "Hz to reject)" : "");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * JMH microbenchmarks of the client's per-frame signal processing:
+ * generating comfort noise and analyzing the background noise it imitates,
+ * and scanning the amplitude of the microphone's frames: the old loop of
+ * MicThread on 900 8 bit samples, the VoiceDetector and the GainControl on
+ * 20ms at 16kHz. the frames are the synthetic Voice.
+ * measured by bench.Signal, run with "ant jmh -Dbench.args=Signal"
+ *
+ */
+public class SignalBench implements bench.Signal.Ops {
+
+    private static final int RATE = 16000;
+    private static final int FRAME_MS = 20;
+    private static final int FRAME = RATE * FRAME_MS / 1000;
+    private static final int FRAMES = 50; //different frames, cycled through
+    private short[][] voice;
+    private byte[][] legacy;
+    private short[] out = new short[FRAME];
+    private ComfortNoise noise = new ComfortNoise();
+    private ComfortNoise.Analyzer analyzer = new ComfortNoise.Analyzer(RATE);
+    private VoiceDetector vad = new VoiceDetector(RATE, FRAME_MS);
+    private GainControl agc = new GainControl(FRAME_MS);
+    private double amplification = 1.0; //of the old MicThread
+    private int n = 0; //calls so far, to cycle through the frames
+
+    @Override
+    public void setup() {
+        voice = Voice.frames(RATE, FRAME, FRAMES);
+        legacy = Voice.voice(FRAMES);
+        for (int f = 0; f < FRAMES; f++) {
+            analyzer.update(voice[f], FRAME);
+        }
+        noise.setParams(analyzer.describe(-50));
+    }
+
+    @Override
+    public short comfortNoiseFill() {
+        noise.fill(out, FRAME);
+        return out[0];
+    }
+
+    @Override
+    public int comfortNoiseAnalyze() { //what MicThread does for a frame of silence
+        analyzer.update(voice[n++ % FRAMES], FRAME);
+        return analyzer.describe(-50).length;
+    }
+
+    @Override
+    public long amplitudeLegacy() { //the loop MicThread used to run on each frame
+        byte[] buff = legacy[n++ % FRAMES];
+        long tot = 0;
+        for (int i = 0; i < buff.length; i++) {
+            buff[i] *= amplification;
+            tot += Math.abs(buff[i]);
+        }
+        tot *= 2.5;
+        tot /= buff.length;
+        return tot;
+    }
+
+    @Override
+    public boolean amplitudeVad() {
+        return vad.isSpeech(voice[n++ % FRAMES], FRAME);
+    }
+
+    @Override
+    public short amplitudeAgc() { //on a copy, or the frames would drift towards the target level
+        System.arraycopy(voice[n++ % FRAMES], 0, out, 0, FRAME);
+        agc.process(out, FRAME, true);
+        return out[0];
+    }
+}
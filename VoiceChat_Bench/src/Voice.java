@@ -0,0 +1,64 @@
+
+import java.util.Random;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * the synthetic voice all the benchmarks and the LoadGenerator use: vowels
+ * with a moving pitch, about 6 syllables per second and some noise. it's the
+ * same every time, so runs can be compared
+ *
+ */
+public class Voice {
+
+    /**
+     * samples of the voice at rate, 16 bit
+     */
+    public static short[] pcm(int rate, int samples) {
+        Random r = new Random(42);
+        short[] v = new short[samples];
+        double phase = 0;
+        for (int i = 0; i < samples; i++) {
+            double t = i / (double) rate;
+            double pitch = 120 + 30 * Math.sin(2 * Math.PI * 0.5 * t);
+            phase += 2 * Math.PI * pitch / rate;
+            double s = 0;
+            for (int h = 1; h <= 10; h++) {
+                s += Math.sin(h * phase) / h;
+            }
+            double envelope = Math.max(0, Math.sin(2 * Math.PI * 3 * t));
+            v[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(5000 * envelope * s + 100 * r.nextGaussian())));
+        }
+        return v;
+    }
+
+    /**
+     * the voice cut in frames of frameSamples samples at rate, 16 bit
+     */
+    public static short[][] frames(int rate, int frameSamples, int frames) {
+        short[] pcm = pcm(rate, frameSamples * frames);
+        short[][] v = new short[frames][frameSamples];
+        for (int f = 0; f < frames; f++) {
+            System.arraycopy(pcm, f * frameSamples, v[f], 0, frameSamples);
+        }
+        return v;
+    }
+
+    /**
+     * the voice in the frames of the first versions: SoundPacket's 900
+     * samples, 8 bit, at 11025Hz
+     */
+    public static byte[][] voice(int frames) {
+        short[][] pcm = frames((int) SoundPacket.defaultFormat.getSampleRate(), SoundPacket.defaultDataLenght, frames);
+        byte[][] v = new byte[frames][SoundPacket.defaultDataLenght];
+        for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < v[f].length; i++) {
+                v[f][i] = (byte) (pcm[f][i] >> 8);
+            }
+        }
+        return v;
+    }
+}
@@ -0,0 +1,59 @@
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * the JMH benchmark of FanoutBench, which implements Ops (see Pipeline), for
+ * rooms of 10 to 1000 members
+ * run with "ant jmh -Dbench.args=Fanout"
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class Fanout {
+
+    /**
+     * the operations measured, implemented by FanoutBench
+     */
+    public interface Ops {
+
+        void setup(int members);
+
+        long fanout();
+    }
+    @Param({"10", "100", "1000"})
+    public int members;
+    private Ops ops;
+
+    @Setup
+    public void setup() throws Exception {
+        ops = (Ops) Class.forName("FanoutBench").getDeclaredConstructor().newInstance();
+        ops.setup(members);
+    }
+
+    @Benchmark
+    public long fanout() {
+        return ops.fanout();
+    }
+}
@@ -0,0 +1,115 @@
+
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * the JMH benchmarks of PipelineBench. JMH doesn't generate code for classes
+ * in the default package, and classes in a package can't use the ones of the
+ * default package, where all the classes of the server and the client are:
+ * PipelineBench implements Ops, which these benchmarks call.
+ * run with "ant jmh -Dbench.args=Pipeline"
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class Pipeline {
+
+    /**
+     * the operations measured, implemented by PipelineBench
+     */
+    public interface Ops {
+
+        void setup() throws IOException;
+
+        int serializeObjectStream() throws IOException;
+
+        int serializeFrameCodec();
+
+        int serializeSharedFrame();
+
+        long deserializeObjectStream() throws IOException, ClassNotFoundException;
+
+        long deserializeFrameCodec() throws IOException;
+
+        int gzipStreamsCompress() throws IOException;
+
+        int gzipStreamsDecompress() throws IOException;
+
+        int gzipCodecCompress();
+
+        int gzipCodecDecompress() throws IOException;
+    }
+    private Ops ops;
+
+    @Setup
+    public void setup() throws Exception {
+        ops = (Ops) Class.forName("PipelineBench").getDeclaredConstructor().newInstance();
+        ops.setup();
+    }
+
+    @Benchmark
+    public int serializeObjectStream() throws IOException {
+        return ops.serializeObjectStream();
+    }
+
+    @Benchmark
+    public int serializeFrameCodec() {
+        return ops.serializeFrameCodec();
+    }
+
+    @Benchmark
+    public int serializeSharedFrame() {
+        return ops.serializeSharedFrame();
+    }
+
+    @Benchmark
+    public long deserializeObjectStream() throws IOException, ClassNotFoundException {
+        return ops.deserializeObjectStream();
+    }
+
+    @Benchmark
+    public long deserializeFrameCodec() throws IOException {
+        return ops.deserializeFrameCodec();
+    }
+
+    @Benchmark
+    public int gzipStreamsCompress() throws IOException {
+        return ops.gzipStreamsCompress();
+    }
+
+    @Benchmark
+    public int gzipStreamsDecompress() throws IOException {
+        return ops.gzipStreamsDecompress();
+    }
+
+    @Benchmark
+    public int gzipCodecCompress() {
+        return ops.gzipCodecCompress();
+    }
+
+    @Benchmark
+    public int gzipCodecDecompress() throws IOException {
+        return ops.gzipCodecDecompress();
+    }
+}
@@ -0,0 +1,83 @@
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * the JMH benchmarks of SignalBench, which implements Ops (see Pipeline)
+ * run with "ant jmh -Dbench.args=Signal"
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class Signal {
+
+    /**
+     * the operations measured, implemented by SignalBench
+     */
+    public interface Ops {
+
+        void setup();
+
+        short comfortNoiseFill();
+
+        int comfortNoiseAnalyze();
+
+        long amplitudeLegacy();
+
+        boolean amplitudeVad();
+
+        short amplitudeAgc();
+    }
+    private Ops ops;
+
+    @Setup
+    public void setup() throws Exception {
+        ops = (Ops) Class.forName("SignalBench").getDeclaredConstructor().newInstance();
+        ops.setup();
+    }
+
+    @Benchmark
+    public short comfortNoiseFill() {
+        return ops.comfortNoiseFill();
+    }
+
+    @Benchmark
+    public int comfortNoiseAnalyze() {
+        return ops.comfortNoiseAnalyze();
+    }
+
+    @Benchmark
+    public long amplitudeLegacy() {
+        return ops.amplitudeLegacy();
+    }
+
+    @Benchmark
+    public boolean amplitudeVad() {
+        return ops.amplitudeVad();
+    }
+
+    @Benchmark
+    public short amplitudeAgc() {
+        return ops.amplitudeAgc();
+    }
+}
@@ -0,0 +1,83 @@
+
+import java.io.IOException;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * G.711 A-law: one byte per sample, like mu-law but with a slightly different
+ * curve. decoded with a table, encoded with a few shifts
+ *
+ */
+public class ALawCodec implements SpeechCodec {
+
+    private static final short[] DECODE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int a = i ^ 0x55;
+            int t = (a & 0x0f) << 4;
+            int segment = (a & 0x70) >> 4;
+            if (segment == 0) {
+                t += 8;
+            } else {
+                t = (t + 0x108) << (segment - 1);
+            }
+            DECODE[i] = (short) ((a & 0x80) != 0 ? t : -t);
+        }
+    }
+
+    @Override
+    public int getId() {
+        return Codecs.PCMA;
+    }
+
+    @Override
+    public String getName() {
+        return "PCMA";
+    }
+
+    @Override
+    public int maxEncodedLength(int samples) {
+        return samples;
+    }
+
+    @Override
+    public int encode(short[] pcm, int samples, byte[] out) {
+        for (int i = 0; i < samples; i++) {
+            out[i] = encode(pcm[i]);
+        }
+        return samples;
+    }
+
+    @Override
+    public int decode(byte[] in, int len, short[] pcm) throws IOException {
+        if (len > pcm.length) {
+            throw new IOException("A-law frame too long");
+        }
+        for (int i = 0; i < len; i++) {
+            pcm[i] = DECODE[in[i] & 0xff];
+        }
+        return len;
+    }
+
+    private static byte encode(int s) {
+        int mask = 0xd5;
+        s >>= 3; //13 bits
+        if (s < 0) {
+            mask = 0x55;
+            s = -s - 1;
+        }
+        int segment = 0;
+        for (int end = 0x1f; segment < 8 && s > end; end = (end << 1) | 1) {
+            segment++;
+        }
+        if (segment >= 8) { //too loud, clip
+            return (byte) (0x7f ^ mask);
+        }
+        int a = (segment << 4) | ((segment < 2 ? s >> 1 : s >> segment) & 0x0f);
+        return (byte) (a ^ mask);
+    }
+}
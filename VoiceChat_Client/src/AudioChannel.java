@@ -1,112 +1,314 @@
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
-import java.util.zip.GZIPInputStream;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.SourceDataLine;
-
 /*
  * To change this template, choose Tools | Templates and open the template in
  * the editor.
  */
 /**
- * this thread plays the sound coming from one of the users that are connected
- * on the server. each user has its own AudioChannel.
+ * the sound coming from one of the users that are connected on the server,
+ * decoded to 16 bit and waiting to be mixed by the MixerThread. each user has its own
+ * AudioChannel.
+ * it's an adaptive jitter buffer: frames are put back in order by sequence
+ * number, and playing starts only when enough of them are buffered to ride
+ * out the jitter measured on their arrival times (RFC 3550 estimator, against
+ * the clock given by the sequence numbers). the target depth follows the
+ * jitter: it's reached again every time playing starts, and extra depth is
+ * thrown away during silence. a lost frame is concealed by repeating the last
+ * one while fading it out; a frame arriving after its turn is thrown away.
+ * after a silence frame the sender may stop sending until its user talks
+ * again (DTX): comfort noise like the one it described is played for as long
+ * as nothing arrives, and the first frames of the new talkspurt are buffered
+ * again before playing.
+ * not thread safe, used only while holding the MixerThread's lock
+ *
  *
- *  
  */
-public class AudioChannel extends Thread {
+public class AudioChannel {
 
+    private static final int SLOTS = 32; //frames buffered, must be a power of 2
+    private static final double MIN_JITTER_MS = 20; //depth always kept beyond a frame, the granularity of the MixerThread
+    private static final double MAX_DELAY_MS = 400; //the target depth never goes above this
+    private static final double JITTER_FACTOR = 3; //depth kept for each ms of jitter
+    private static final double CONCEAL_MS = 120; //a concealed frame fades out completely in this time
+    private static final long TIMEOUT = 5000000000L; //ns without frames after which the user is gone
+    private static final long DTX_TIMEOUT = 30000000000L; //the same for a user who said it's quiet
     private long chId; //an id unique for each user. generated by IP and port
-    private ArrayList<Message> queue = new ArrayList<Message>(); //queue of messages to be played
-    private int lastSoundPacketLen = SoundPacket.defaultDataLenght;
+    private final float sampleRate;
+    private Frame[] slots = new Frame[SLOTS]; //frame with sequence number seq is in slots[seq % SLOTS]
+    private int frames = 0, bufferedSamples = 0; //in slots
+    private boolean started = false; //false until the first frame is played, or after a reset
+    private int nextSeq; //sequence number of the next frame to play
+    private boolean received = false; //false until the first frame arrives, or after a reset
+    private int highestSeq; //highest sequence number received
+    private int frameLen; //samples in the frames of this user, the length of the comfort noise
+    private boolean playing = false; //false while buffering
+    private boolean dtx = false; //true after a silence frame was played, until the sender talks again
+    private ComfortNoise comfortNoise = new ComfortNoise();
+    private short[] cur; //samples being played: the last frame, the concealment or the comfort noise
+    private int curPos = 0, curLen = 0;
+    private short[] last = new short[0]; //last frame played
+    private int lastLen = 0;
+    private short[] generated = new short[0]; //concealment or comfort noise
+    private int concealPos = 0; //position in last of the next concealed sample
+    private double concealGain = 0; //gain of the next concealed sample, 0 when there's nothing to conceal with
+    private double jitter = 0; //ms
+    private double lastTransit; //ms, arrival time minus media time of the last frame
     private long lastPacketTime = System.nanoTime();
+    private long late = 0, concealed = 0; //frames
+
+    private static class Frame {
+
+        private boolean used = false;
+        private int seq;
+        private boolean silence; //the sender was quiet, play comfort noise
+        private byte[] noise; //comfort noise parameters, null if unknown
+        private short[] samples = new short[0];
+        private int len;
+    }
+
+    public AudioChannel(long chId, float sampleRate) {
+        this.chId = chId;
+        this.sampleRate = sampleRate;
+        frameLen = (int) Math.round(sampleRate * MIN_JITTER_MS / 1000); //until the first frame tells us
+    }
+
+    public long getChId() {
+        return chId;
+    }
 
     public boolean canKill() { //returns true if it's been a long time since last received packet
-        if (System.nanoTime() - lastPacketTime > 5000000000L) {
-            return true; //5 seconds with no data
+        if (System.nanoTime() - lastPacketTime > (dtx ? DTX_TIMEOUT : TIMEOUT)) {
+            return true;
         } else {
             return false;
         }
     }
 
-    public void closeAndKill() {
-        if (speaker != null) {
-            speaker.close();
+    /**
+     * adds a frame of decoded samples. frames received over TCP from a
+     * server older than SEQ_VERSION have no sequence number: they're numbered
+     * as they arrive, TCP keeps them in order
+     */
+    public void add(int seq, boolean sequenced, short[] samples, int len) {
+        add(seq, sequenced, samples, len, null);
+    }
+
+    /**
+     * adds a silence frame, with the comfort noise parameters the sender gave
+     * (null if none)
+     */
+    public void addSilence(int seq, boolean sequenced, byte[] noise) {
+        add(seq, sequenced, null, 0, noise);
+    }
+
+    private void add(int seq, boolean sequenced, short[] samples, int len, byte[] noise) {
+        lastPacketTime = System.nanoTime();
+        if (!sequenced) {
+            seq = received ? highestSeq + 1 : 0;
+        }
+        if (received && Math.abs(seq - highestSeq) > SLOTS) { //the sender started numbering again, or we lost too much to catch up
+            reset();
+        }
+        if (started && seq - nextSeq < 0) { //too late, its turn has passed
+            late++;
+            return;
+        }
+        if (samples != null) {
+            frameLen = len;
+        }
+        Frame f = slots[seq & (SLOTS - 1)];
+        if (f == null) {
+            f = slots[seq & (SLOTS - 1)] = new Frame();
+        } else if (f.used) {
+            if (f.seq == seq) { //duplicate
+                return;
+            }
+            frames--; //older than the frames we can buffer, replace it
+            bufferedSamples -= f.len;
+        }
+        f.used = true;
+        f.seq = seq;
+        f.silence = samples == null;
+        f.noise = noise;
+        f.len = f.silence ? frameLen : len;
+        if (!f.silence) {
+            if (f.samples.length < len) {
+                f.samples = new short[len];
+            }
+            System.arraycopy(samples, 0, f.samples, 0, len);
+        }
+        frames++;
+        bufferedSamples += f.len;
+        double transit = System.nanoTime() / 1000000.0 - seq * toMs(frameLen); //constant if the frames arrive as regularly as they were sent
+        if (received && !(dtx && frames == 1)) { //the first frame after a DTX silence has no reference over TCP, where the numbering didn't go on
+            jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+        }
+        lastTransit = transit;
+        if (!received || seq - highestSeq > 0) {
+            highestSeq = seq;
+        }
+        received = true;
+    }
+
+    private void reset() {
+        for (Frame f : slots) {
+            if (f != null) {
+                f.used = false;
+            }
         }
-        stop();
+        frames = 0;
+        bufferedSamples = 0;
+        started = false;
+        received = false;
+        playing = false;
     }
 
-    public AudioChannel(long chId) {
-        this.chId = chId;
+    /**
+     * depth, in samples, buffered before playing starts
+     */
+    public int getTargetSamples() {
+        double ms = Math.min(MAX_DELAY_MS, toMs(frameLen) + Math.max(MIN_JITTER_MS, JITTER_FACTOR * jitter));
+        return (int) (ms * sampleRate / 1000);
     }
 
-    public long getChId() {
-        return chId;
+    public double getJitter() { //ms
+        return jitter;
     }
 
-    public void addToQueue(Message m) { //adds a message to the play queue
-        queue.add(m);
-    }
-    private SourceDataLine speaker = null; //speaker
-
-    @Override
-    public void run() {
-        try {
-            //open channel to sound card
-            AudioFormat af = SoundPacket.defaultFormat;
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, af);
-            speaker = (SourceDataLine) AudioSystem.getLine(info);
-            speaker.open(af);
-            speaker.start();
-            //sound card ready
-            for (;;) { //this infinite cycle checks for new packets to be played in the queue, and plays them. to avoid busy wait, a sleep(10) is executed at the beginning of each iteration
-                if (queue.isEmpty()) { //nothing to play, wait
-                    Utils.sleep(10);
-                    continue;
-                } else {//we got something to play
-                    lastPacketTime = System.nanoTime();
-                    Message in = queue.get(0);
-                    queue.remove(in);
-                    if (in.getData() instanceof SoundPacket) { //it's a sound packet, send it to sound card
-                        SoundPacket m = (SoundPacket) (in.getData());
-                        if (m.getData() == null) {//sender skipped a packet, play comfort noise
-                            byte[] noise = new byte[lastSoundPacketLen];
-                            for (int i = 0; i < noise.length; i++) {
-                                noise[i] = (byte) ((Math.random() * 3) - 1);
-                            }
-                            speaker.write(noise, 0, noise.length);
-                        } else {
-                            //decompress data
-                            GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(m.getData()));
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            for (;;) {
-                                int b = gis.read();
-                                if (b == -1) {
-                                    break;
-                                } else {
-                                    baos.write((byte) b);
-                                }
-                            }
-                            //play decompressed data
-                            byte[] toPlay=baos.toByteArray();
-                            speaker.write(toPlay, 0, toPlay.length);
-                            lastSoundPacketLen = m.getData().length;
-                        }
-                    } else { //not a sound packet, trash
-                        continue; //invalid message
-                    }
+    public long getLate() { //frames thrown away because they arrived after their turn
+        return late;
+    }
+
+    public long getConcealed() { //frames concealed because they were lost
+        return concealed;
+    }
+
+    private double toMs(int samples) {
+        return samples * 1000.0 / sampleRate;
+    }
+
+    /**
+     * adds the next n samples to total. adds nothing while buffering
+     */
+    public void mixInto(int[] total, int n) {
+        int filled = 0;
+        while (filled < n) {
+            if (curPos == curLen && !next()) {
+                return;
+            }
+            int k = Math.min(n - filled, curLen - curPos);
+            for (int i = 0; i < k; i++) {
+                total[filled++] += cur[curPos++];
+            }
+        }
+    }
+
+    private boolean next() { //moves to the next samples to play, returns false if there are none
+        if (!playing) {
+            if (frames == 0 || bufferedSamples < getTargetSamples()) {
+                if (dtx) { //the sender is quiet, or just started talking again
+                    comfortNoise(frameLen);
+                    return true;
+                }
+                return false;
+            }
+            playing = true;
+            nextSeq = lowestSeq(); //skip what was lost while buffering
+            started = true;
+        }
+        for (;;) {
+            if (frames == 0 && dtx) { //the sender stopped sending, buffer what it sends when it talks again
+                playing = false;
+                comfortNoise(frameLen);
+                return true;
+            }
+            if (frames == 0) { //the next frame is late: stretch the last one while we wait for it
+                if (!conceal(Math.round(sampleRate * (float) MIN_JITTER_MS / 1000))) { //nothing left to conceal with, buffer again
+                    playing = false;
+                    return false;
+                }
+                return true;
+            }
+            Frame f = slots[nextSeq & (SLOTS - 1)];
+            if (f == null || !f.used || f.seq != nextSeq) { //lost, the following ones are already here
+                nextSeq++;
+                if (dtx) { //or not sent
+                    comfortNoise(frameLen);
+                } else {
+                    concealed++;
+                    conceal(frameLen);
                 }
+                return true;
             }
-        } catch (Exception e) { //sound card error or connection error, stop
-            System.out.println("receiverThread " + chId + " error: " + e.toString());
-            if (speaker != null) {
-                speaker.close();
+            f.used = false;
+            frames--;
+            bufferedSamples -= f.len;
+            nextSeq++;
+            int excess = bufferedSamples - getTargetSamples();
+            if ((f.silence && excess > 0) || excess > getTargetSamples()) { //more delay than we need, throw it away (during silence, if possible)
+                continue;
             }
-            stop();
+            if (f.silence) { //sender skipped a packet, play comfort noise
+                concealGain = 0; //there's nothing to repeat after a silence
+                dtx = true;
+                comfortNoise.setParams(f.noise);
+                comfortNoise(f.len);
+            } else {
+                dtx = false;
+                if (last.length < f.len) {
+                    last = new short[f.len];
+                }
+                System.arraycopy(f.samples, 0, last, 0, f.len);
+                lastLen = f.len;
+                concealGain = 1;
+                concealPos = 0;
+                play(last, lastLen);
+            }
+            return true;
+        }
+    }
+
+    private int lowestSeq() {
+        int lowest = 0;
+        boolean found = false;
+        for (Frame f : slots) {
+            if (f != null && f.used && (!found || f.seq - lowest < 0)) {
+                lowest = f.seq;
+                found = true;
+            }
+        }
+        return lowest;
+    }
+
+    private boolean conceal(int len) { //repeats the last frame, fading out. returns false if it had already faded out
+        boolean audible = concealGain > 0 && lastLen > 0;
+        ensureGenerated(len);
+        double step = 1000 / (CONCEAL_MS * sampleRate);
+        for (int i = 0; i < len; i++) {
+            if (concealGain > 0 && lastLen > 0) {
+                generated[i] = (short) (last[concealPos++ % lastLen] * concealGain);
+                concealGain -= step;
+            } else {
+                generated[i] = 0;
+            }
+        }
+        play(generated, len);
+        return audible;
+    }
+
+    private void comfortNoise(int len) {
+        ensureGenerated(len);
+        comfortNoise.fill(generated, len);
+        play(generated, len);
+    }
+
+    private void ensureGenerated(int len) {
+        if (generated.length < len) {
+            generated = new short[len];
         }
     }
+
+    private void play(short[] samples, int len) {
+        cur = samples;
+        curPos = 0;
+        curLen = len;
+    }
 }
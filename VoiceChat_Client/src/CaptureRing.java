@@ -0,0 +1,126 @@
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * lock-free single-producer single-consumer ring of captured frames, between
+ * the CaptureThread (producer) and the MicThread (consumer). the frames and
+ * their buffers are allocated once and go around forever: the producer claims
+ * a free frame, fills it and publishes it, the consumer takes it and releases
+ * it when it's done with it. if the consumer falls behind and the ring is full,
+ * claim() returns null and the producer drops what it captures. the consumer
+ * parks while the ring is empty, and the producer unparks it
+ *
+ */
+public class CaptureRing {
+
+    /**
+     * a frame of samples, with its sequence number and the time its last
+     * sample was captured
+     */
+    public static class Frame {
+
+        private final short[] samples;
+        private int seq;
+        private long captureNanos; //System.nanoTime()
+
+        private Frame(int length) {
+            samples = new short[length];
+        }
+
+        public short[] getSamples() {
+            return samples;
+        }
+
+        public int getSeq() {
+            return seq;
+        }
+
+        public long getCaptureNanos() {
+            return captureNanos;
+        }
+
+        void stamp(int seq, long captureNanos) {
+            this.seq = seq;
+            this.captureNanos = captureNanos;
+        }
+    }
+    private final Frame[] frames;
+    private final int mask;
+    private volatile long head = 0; //next frame to take, only advanced by the consumer
+    private volatile long tail = 0; //next frame to fill, only advanced by the producer
+    private volatile boolean waiting = false; //true when the consumer is (about to be) parked
+    private volatile Thread consumer;
+
+    /**
+     * capacity is rounded up to a power of 2, every frame has frameLength
+     * samples
+     */
+    public CaptureRing(int capacity, int frameLength) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        frames = new Frame[size];
+        for (int i = 0; i < size; i++) {
+            frames[i] = new Frame(frameLength);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * returns the next free frame, or null if the ring is full. producer only
+     */
+    public Frame claim() {
+        long t = tail;
+        if (t - head > mask) {
+            return null;
+        }
+        return frames[(int) t & mask];
+    }
+
+    /**
+     * hands the claimed frame to the consumer. producer only
+     */
+    public void publish() {
+        tail = tail + 1; //volatile write, publishes the frame
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * returns the oldest published frame, waiting up to the specified time for
+     * one. returns null if none arrives in time. the frame belongs to the
+     * caller until release(). consumer only
+     */
+    public Frame take(long timeout, TimeUnit unit) {
+        long h = head;
+        if (tail - h > 0) {
+            return frames[(int) h & mask];
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        consumer = Thread.currentThread();
+        for (;;) {
+            waiting = true;
+            if (tail - h > 0) { //check again, the producer may have published before it could see waiting
+                waiting = false;
+                return frames[(int) h & mask];
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                waiting = false;
+                return null;
+            }
+            LockSupport.parkNanos(this, left);
+        }
+    }
+
+    /**
+     * gives the frame returned by take() back to the producer. consumer only
+     */
+    public void release() {
+        head = head + 1;
+    }
+}
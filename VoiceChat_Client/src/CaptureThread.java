@@ -0,0 +1,137 @@
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * reads the microphone at the pace of the sound card: blocking reads of
+ * exactly one frame at a time, in the SessionFormat given by the server, into
+ * the buffers of a CaptureRing, each frame stamped with a sequence number and
+ * the time it was captured. if the microphone can't record at the rate of the
+ * session, it records at a rate it supports and a Resampler converts it.
+ * nothing is thrown away to catch up, the MicThread encodes the frames as they
+ * come. if it falls behind and the ring is full, the frame is read anyway, to
+ * keep the cadence, and dropped: its sequence number is skipped, so the
+ * receivers conceal it
+ *
+ */
+public class CaptureThread extends Thread {
+
+    private static final int[] DEVICE_RATES = {48000, 44100, 16000, 8000}; //tried in this order when the microphone can't record at the session's rate
+    private static final int LINE_FRAMES = 8; //frames buffered by the line while we're not reading
+    private static final int RING_FRAMES = 16; //frames waiting for the MicThread
+    private final TargetDataLine mic;
+    private final int frameLength; //samples in a frame
+    private final CaptureRing ring;
+    private final Resampler resampler; //null if the microphone records at the session's rate
+    private final byte[] raw; //a frame as read from the line, at its rate
+    private final short[] samples; //the same, decoded from little endian
+    private final short[] resampled; //the same, at the session's rate
+    private final short[] pending; //resampled samples not yet in a frame
+    private int pendingLen = 0;
+    private final short[] overflow; //where a frame goes when the ring is full
+    private int seq = 0; //sequence number of the next frame
+    private volatile long dropped = 0; //frames dropped because the ring was full
+    private volatile boolean closed = false;
+
+    public CaptureThread(SessionFormat format) throws LineUnavailableException {
+        super("CaptureThread");
+        frameLength = format.getFrameSamples();
+        ring = new CaptureRing(RING_FRAMES, frameLength);
+        overflow = new short[frameLength];
+        //open microphone line, an exception is thrown in case of error
+        AudioFormat af = format.getAudioFormat();
+        TargetDataLine line = open(af, format.getFrameMs());
+        for (int i = 0; line == null && i < DEVICE_RATES.length; i++) {
+            af = SessionFormat.getAudioFormat(DEVICE_RATES[i]);
+            line = open(af, format.getFrameMs());
+        }
+        if (line == null) {
+            throw new LineUnavailableException("no microphone can record 16 bit mono");
+        }
+        mic = line;
+        int rate = Math.round(af.getSampleRate());
+        resampler = rate == format.getSampleRate() ? null : new Resampler(rate, format.getSampleRate());
+        int deviceFrame = Math.round(rate * format.getFrameMs() / 1000f); //samples read at a time
+        raw = new byte[deviceFrame * 2];
+        samples = new short[deviceFrame];
+        resampled = resampler == null ? null : new short[resampler.maxOutput(deviceFrame)];
+        pending = new short[frameLength + (resampler == null ? deviceFrame : resampled.length)];
+        mic.start();
+    }
+
+    private static TargetDataLine open(AudioFormat af, int frameMs) throws LineUnavailableException { //returns null if the format is not supported
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, af);
+        if (!AudioSystem.isLineSupported(info)) {
+            return null;
+        }
+        TargetDataLine line = (TargetDataLine) AudioSystem.getLine(info);
+        line.open(af, Math.round(af.getSampleRate() * frameMs / 1000f) * af.getFrameSize() * LINE_FRAMES);
+        return line;
+    }
+
+    public CaptureRing getRing() {
+        return ring;
+    }
+
+    public int getFrameLength() { //samples
+        return frameLength;
+    }
+
+    public long getDropped() { //frames dropped because the MicThread was too slow
+        return dropped;
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            int n = 0;
+            while (n < raw.length && !closed) { //blocks until the whole frame is captured
+                n += mic.read(raw, n, raw.length - n);
+            }
+            if (closed) {
+                break;
+            }
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (short) (raw[2 * i] & 0xff | raw[2 * i + 1] << 8);
+            }
+            if (resampler == null) {
+                System.arraycopy(samples, 0, pending, pendingLen, samples.length);
+                pendingLen += samples.length;
+            } else {
+                int r = resampler.process(samples, samples.length, resampled);
+                System.arraycopy(resampled, 0, pending, pendingLen, r);
+                pendingLen += r;
+            }
+            long now = System.nanoTime();
+            while (pendingLen >= frameLength) {
+                CaptureRing.Frame f = ring.claim();
+                System.arraycopy(pending, 0, f == null ? overflow : f.getSamples(), 0, frameLength);
+                pendingLen -= frameLength;
+                System.arraycopy(pending, frameLength, pending, 0, pendingLen);
+                if (f == null) {
+                    dropped++;
+                } else {
+                    f.stamp(seq, now);
+                    ring.publish();
+                }
+                seq++;
+            }
+        }
+        mic.close();
+    }
+
+    /**
+     * stops capturing and releases the microphone
+     */
+    public void close() {
+        closed = true;
+        mic.stop(); //a blocked read returns
+    }
+}
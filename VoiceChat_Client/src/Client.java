@@ -1,10 +1,14 @@
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 
 /*
  * To change this template, choose Tools | Templates and open the template in
@@ -12,61 +16,200 @@ import java.util.ArrayList;
  */
 /**
  * Connects to the server, then starts receiving messages. Creates
- * a MicThread that sends microphone data to the server, and creates an instance
- * of AudioThread for each user.
- *  
+ * a MicThread that sends microphone data to the server, and a MixerThread that
+ * plays what the other users say through one line, with an AudioChannel for
+ * each user.
+ * the binary protocol is used if the server supports it, otherwise the client
+ * reconnects and uses Java serialization like the old versions.
+ * if the server offers UDP, sound frames go through a MediaChannel instead of
+ * the TCP connection.
+ * every client starts in the lobby, and can join a room to talk only with the
+ * people in it
+ *
  */
 public class Client extends Thread {
 
     private Socket s;
-    private ArrayList<AudioChannel> chs = new ArrayList<AudioChannel>();
+    private MixerThread mixer; //plays what we receive, null if the sound card is unavailable
     private MicThread st;
+    private InputStream is; //raw stream from the server
+    private boolean binary; //true if the server speaks the binary protocol
+    private int version; //version of the binary protocol
+    private DataInputStream fromServerBin; //binary protocol
+    private DataOutputStream toServerBin;
+    private ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_FRAME + 4);
+    private ObjectInputStream fromServer; //object streams with old servers
+    private ObjectOutputStream toServer;
+    private int written = 0; //messages written to toServer
+    private MediaChannel media; //UDP path for sound frames, null if the server didn't offer it
+    private volatile String room = RoomControl.LOBBY; //room we're in, as confirmed by the server
+    private volatile int codec = Codecs.GZIP; //SpeechCodec for what we send, GZIP until the server picks one
+    private volatile SessionFormat format; //what we record and play at, null until the server tells us
 
     public Client(String serverIp, int serverPort) throws UnknownHostException, IOException {
         s = new Socket(serverIp, serverPort);
+        try {
+            is = new BufferedInputStream(s.getInputStream());
+            fromServerBin = new DataInputStream(is);
+            toServerBin = new DataOutputStream(s.getOutputStream());
+            byte[] header = new byte[FrameCodec.OBJECT_STREAM_HEADER.length];
+            fromServerBin.readFully(header); //every server starts with an object stream header, skip it
+            FrameCodec.writeHello(toServerBin);
+            version = FrameCodec.readHelloReply(fromServerBin); //an old server closes the connection instead of replying
+            binary = true;
+            if (version >= FrameCodec.CODEC_VERSION) { //offer our codecs, the server will answer with the one to use
+                frame.clear();
+                FrameCodec.encode(new Message(-1, -1, new CodecList(Codecs.getSupported())), frame, false, version);
+                toServerBin.write(frame.array(), 0, frame.position());
+            }
+        } catch (IOException e) { //old server, connect again and use object streams
+            s.close();
+            s = new Socket(serverIp, serverPort);
+            is = s.getInputStream();
+            binary = false;
+        }
+    }
+
+    /**
+     * sends a message to the server. used by the MicThread
+     */
+    public synchronized void send(Message m) throws IOException {
+        if (media != null && media.isRegistered()) { //the MicThread numbered the frame, the receivers use it to detect lost and reordered packets
+            if (media.send(m, version >= FrameCodec.LEVEL_VERSION)) {
+                return;
+            }
+        }
+        if (binary) {
+            frame.clear();
+            FrameCodec.encode(m, frame, version >= FrameCodec.LEVEL_VERSION, version); //the server uses the level to pick the loudest speakers, and forwards the MicThread's number from SEQ_VERSION
+            toServerBin.write(frame.array(), 0, frame.position());
+        } else {
+            if (++written % FrameCodec.OBJECT_STREAM_RESET_INTERVAL == 0) { //forget the objects written so far, or the stream keeps them in memory forever (done before writing, so a reset is never the last thing in the stream)
+                toServer.reset();
+            }
+            toServer.writeObject(m);
+        }
+    }
+
+    /**
+     * asks the server to move us to a room, creating it if nobody is in it.
+     * returns false if the server doesn't support rooms
+     */
+    public boolean joinRoom(String name) throws IOException {
+        return sendRoomControl(new RoomControl(RoomControl.JOIN, name));
+    }
+
+    /**
+     * asks the server to move us back to the lobby. returns false if the
+     * server doesn't support rooms
+     */
+    public boolean leaveRoom() throws IOException {
+        return sendRoomControl(new RoomControl(RoomControl.LEAVE, RoomControl.LOBBY));
+    }
+
+    private synchronized boolean sendRoomControl(RoomControl rc) throws IOException {
+        if (!binary || version < FrameCodec.ROOM_VERSION) {
+            return false;
+        }
+        frame.clear();
+        FrameCodec.encode(new Message(-1, -1, rc), frame, false, version);
+        toServerBin.write(frame.array(), 0, frame.position());
+        return true;
+    }
+
+    public String getRoom() { //room we're in, the lobby is ""
+        return room;
+    }
+
+    public int getCodec() { //SpeechCodec to encode what we send with
+        return codec;
+    }
+
+    public SessionFormat getFormat() { //null until it's known
+        return format;
     }
 
     @Override
     public void run() {
         try {
-            ObjectInputStream fromServer = new ObjectInputStream(s.getInputStream());  //create object streams with the server
-            ObjectOutputStream toServer = new ObjectOutputStream(s.getOutputStream());
-            try {
-                Utils.sleep(100); //wait for the GUI microphone test to release the microphone
-                st = new MicThread(toServer);  //creates a MicThread that sends microphone data to the server
-                st.start(); //starts the MicThread
-            } catch (Exception e) { //error acquiring microphone. causes: no microphone or microphone busy
-                System.out.println("mic unavailable " + e);
+            if (!binary) {
+                fromServer = new ObjectInputStream(is);  //create object streams with the server
+                toServer = new ObjectOutputStream(s.getOutputStream());
+            }
+            if (!binary || version < FrameCodec.FORMAT_VERSION) { //the server won't tell us the format, it's the one of the first versions
+                startAudio(SessionFormat.LEGACY);
             }
-            for (;;) { //this infinite cycle checks for new data from the server, then sends it to the correct AudioChannel. if needed, a new AudioChannel is created
-                
-                if (s.getInputStream().available() > 0) { //we got something from the server (workaround: used available method from InputStream instead of the one from ObjetInputStream because of a bug in the JRE)
-                    Message in = (Message) (fromServer.readObject()); //read message
-                    //decide which audio channel should get this message
-                    AudioChannel sendTo = null; 
-                    for (AudioChannel ch : chs) {
-                        if (ch.getChId() == in.getChId()) {
-                            sendTo = ch;
-                        }
+            for (;;) { //this infinite cycle waits for new data from the server, then gives it to the MixerThread
+                Message in = binary ? FrameCodec.read(fromServerBin, version) : (Message) (fromServer.readObject()); //blocks until a message arrives
+                if (in.getData() instanceof SessionFormat) { //the server told us how to record and play
+                    if (format == null) {
+                        startAudio((SessionFormat) in.getData());
                     }
-                    if (sendTo != null) {
-                        sendTo.addToQueue(in);
-                    } else { //new AudioChannel is needed
-                        AudioChannel ch = new AudioChannel(in.getChId());
-                        ch.addToQueue(in);
-                        ch.start();
-                        chs.add(ch);
+                } else if (in.getData() instanceof MediaSession) { //the server offers UDP for sound frames
+                    startMedia((MediaSession) in.getData());
+                } else if (in.getData() instanceof RoomControl) { //the server moved us to a room
+                    room = ((RoomControl) in.getData()).getRoom();
+                } else if (in.getData() instanceof CodecList) { //the server picked one of our codecs
+                    byte[] ids = ((CodecList) in.getData()).getIds();
+                    if (ids.length == 1 && Codecs.isSupported(ids[0])) {
+                        codec = ids[0];
                     }
-                }else{ //see if some channels need to be killed and kill them
-                    ArrayList<AudioChannel> killMe=new ArrayList<AudioChannel>();
-                    for(AudioChannel c:chs) if(c.canKill()) killMe.add(c);
-                    for(AudioChannel c:killMe){c.closeAndKill(); chs.remove(c);}
-                    Utils.sleep(1); //avoid busy wait
+                } else {
+                    deliver(in, binary && version >= FrameCodec.SEQ_VERSION);
                 }
             }
         } catch (Exception e) { //connection error
             System.out.println("client err " + e.toString());
         }
+        if (mixer != null) {
+            mixer.close();
+        }
+        if (st != null) {
+            st.close();
+        }
+        if (media != null) {
+            media.close();
+        }
+    }
+
+    private void startAudio(SessionFormat f) {
+        format = f;
+        try {
+            mixer = new MixerThread(f); //creates a MixerThread that plays what the other users say
+            mixer.start();
+        } catch (Exception e) { //error acquiring the speakers
+            System.out.println("speaker unavailable " + e);
+        }
+        try {
+            Utils.sleep(100); //wait for the GUI microphone test to release the microphone
+            st = new MicThread(this, f);  //creates a MicThread that sends microphone data to the server
+            st.start(); //starts the MicThread
+        } catch (Exception e) { //error acquiring microphone. causes: no microphone or microphone busy
+            System.out.println("mic unavailable " + e);
+        }
+    }
+
+    private void startMedia(MediaSession session) {
+        try {
+            MediaChannel m = new MediaChannel(this, s.getInetAddress(), session);
+            m.start();
+            synchronized (this) {
+                media = m;
+            }
+        } catch (IOException ex) { //no UDP, keep using TCP
+            System.out.println("UDP unavailable " + ex);
+        }
+    }
+
+    /**
+     * gives a message received from the server, over TCP or UDP, to the
+     * MixerThread, which plays it along with the other users. sequenced is
+     * true if it carries a sequence number (it came over UDP, or over TCP
+     * from SEQ_VERSION)
+     */
+    public void deliver(Message in, boolean sequenced) {
+        if (mixer != null) {
+            mixer.add(in, sequenced);
+        }
     }
 }
- 
\ No newline at end of file
@@ -0,0 +1,155 @@
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * comfort noise, described by the parameters carried in silence packets and
+ * played by the receivers while the sender is quiet and sends nothing, so the
+ * silence doesn't sound like a dropped call.
+ * the parameters are like the payload of RFC 3389: the level of the sender's
+ * background noise in -dBov (0 is the loudest, 127 is silence), then the
+ * reflection coefficients of an all-pole model of its spectrum (bytes, k*127).
+ * the Analyzer computes them from the frames the sender doesn't send; the
+ * receiver shapes white noise with the same model and scales it to the level.
+ * the noise is drawn from the ThreadLocalRandom of the MixerThread, and
+ * written in a buffer given by the caller, so nothing is allocated while
+ * playing it. not thread safe, each AudioChannel has its own
+ *
+ */
+public class ComfortNoise {
+
+    public static final int SILENT = 127; //-dBov
+    public static final int ORDER = 6; //reflection coefficients sent
+    private static final int DEFAULT_LEVEL = 44; //-dBov, for senders that don't describe their noise. what was always played for them
+    private static final double MAX_REFLECTION = 126 / 127.0; //keeps the model stable
+    private static final double UNIFORM_RMS = Math.sqrt(3); //peak of uniform noise with an RMS of 1
+    private final double[] k = new double[ORDER]; //reflection coefficients
+    private int order = 0;
+    private final double[] b = new double[ORDER]; //backward errors of the lattice filter, its state
+    private double excitation; //peak of the white noise going into the filter
+    private byte[] params; //the parameters in use
+
+    public ComfortNoise() {
+        setParams(null);
+    }
+
+    /**
+     * uses the parameters of a silence packet, null if the sender didn't give
+     * any
+     */
+    public void setParams(byte[] params) {
+        if (params != null && params == this.params) {
+            return;
+        }
+        this.params = params;
+        int level = params == null || params.length == 0 ? DEFAULT_LEVEL : params[0] & 0x7f;
+        order = params == null ? 0 : Math.max(0, Math.min(ORDER, params.length - 1));
+        double gain = 1; //of the filter: the output has the RMS of the excitation divided by sqrt(gain)
+        for (int i = 0; i < order; i++) {
+            k[i] = Math.max(-MAX_REFLECTION, Math.min(MAX_REFLECTION, params[i + 1] / 127.0));
+            gain *= 1 - k[i] * k[i];
+        }
+        double rms = level == SILENT ? 0 : 32768 * Math.pow(10, -level / 20.0);
+        excitation = rms * Math.sqrt(gain) * UNIFORM_RMS;
+    }
+
+    /**
+     * writes len samples of noise to out
+     */
+    public void fill(short[] out, int len) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double scale = excitation / 2147483648.0;
+        for (int i = 0; i < len; i++) {
+            double f = random.nextInt() * scale;
+            for (int j = order - 1; j >= 0; j--) { //lattice synthesis, the inverse of the Analyzer's prediction error filter
+                f -= k[j] * b[j];
+                if (j < order - 1) {
+                    b[j + 1] = b[j] + k[j] * f;
+                }
+            }
+            if (order > 0) {
+                b[0] = f;
+            }
+            out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, f));
+        }
+    }
+
+    /**
+     * estimates the spectrum of the background noise from the frames that
+     * are not speech, averaging their autocorrelation
+     */
+    public static class Analyzer {
+
+        private static final double AVERAGE = 0.2; //weight of a new frame in the average
+        private static final double LAG_WINDOW_HZ = 100; //smooths the spectrum, so the model doesn't pick single tones
+        private static final double NOISE_CORRECTION = 1.0001; //on the lag 0 term, keeps the recursion well conditioned
+        private final double[] window = new double[ORDER + 1];
+        private final double[] shape = new double[ORDER + 1]; //average autocorrelation, normalized to 1 at lag 0
+        private final double[] r = new double[ORDER + 1];
+        private final double[] a = new double[ORDER + 1], prev = new double[ORDER + 1]; //predictor during the recursion
+        private boolean analyzed = false; //false until a frame was averaged
+
+        public Analyzer(int sampleRate) {
+            for (int j = 0; j <= ORDER; j++) {
+                double x = 2 * Math.PI * LAG_WINDOW_HZ * j / sampleRate;
+                window[j] = Math.exp(-0.5 * x * x);
+            }
+        }
+
+        /**
+         * adds a frame of background noise to the estimate
+         */
+        public void update(short[] samples, int len) {
+            for (int j = 0; j <= ORDER; j++) {
+                double sum = 0;
+                for (int i = j; i < len; i++) {
+                    sum += (double) samples[i] * samples[i - j];
+                }
+                r[j] = sum;
+            }
+            if (r[0] <= 0) { //digital silence, nothing to learn
+                return;
+            }
+            for (int j = 0; j <= ORDER; j++) {
+                shape[j] = analyzed ? shape[j] + (r[j] / r[0] - shape[j]) * AVERAGE : r[j] / r[0];
+            }
+            analyzed = true;
+        }
+
+        /**
+         * the parameters for noise at the given level (dBFS) with the
+         * spectrum estimated so far. just the level if no frame was analyzed
+         */
+        public byte[] describe(double noiseDb) {
+            byte[] params = new byte[analyzed ? ORDER + 1 : 1];
+            params[0] = (byte) Math.max(0, Math.min(SILENT, Math.round(-noiseDb)));
+            if (!analyzed) {
+                return params;
+            }
+            for (int j = 0; j <= ORDER; j++) {
+                r[j] = shape[j] * window[j];
+                a[j] = 0;
+            }
+            r[0] *= NOISE_CORRECTION;
+            double error = r[0];
+            for (int i = 1; i <= ORDER; i++) { //Levinson-Durbin
+                double acc = r[i];
+                for (int j = 1; j < i; j++) {
+                    acc += a[j] * r[i - j];
+                }
+                double ki = error > 0 ? Math.max(-MAX_REFLECTION, Math.min(MAX_REFLECTION, -acc / error)) : 0;
+                System.arraycopy(a, 0, prev, 0, i);
+                for (int j = 1; j < i; j++) {
+                    a[j] = prev[j] + ki * prev[i - j];
+                }
+                a[i] = ki;
+                error *= 1 - ki * ki;
+                params[i] = (byte) Math.round(ki * 127);
+            }
+            return params;
+        }
+    }
+}
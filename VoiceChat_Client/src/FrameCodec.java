@@ -0,0 +1,447 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * binary wire protocol, used instead of Java serialization when both sides
+ * support it. a frame is:
+ * length(int, bytes after this field) version(byte) type(byte) chId(long)
+ * timestamp(long) ttl(int, ms) payload(length-22 bytes)
+ * a frame sent over UDP is preceded by a sequence number (int), given by the
+ * client that recorded it, so the receivers can tell lost and reordered
+ * datagrams
+ *
+ * negotiation: the server always starts by sending an object stream header,
+ * because old clients wait for it. a new client answers with MAGIC and the
+ * highest version it supports, and the server replies with MAGIC and the
+ * version that will be used. an old client answers with its own object stream
+ * header instead, and the server keeps using Java serialization with it.
+ * from version 2 the server can offer a UDP port for sound frames, sending a
+ * MediaSession frame right after its reply. the client registers by sending
+ * the same MediaSession in a datagram, and the server echoes it back.
+ * from version 3 the client puts the level of its voice in the sound frames
+ * it sends (TYPE_LEVEL_SOUND), so the server can pick the loudest speakers
+ * without decoding the audio. the server never sends this type.
+ * from version 4 clients can join rooms with RoomControl frames.
+ * from version 5 the client offers its SpeechCodecs in a CodecList frame, and
+ * the server answers with the one to use. sound that isn't GZIP travels in
+ * TYPE_CODED_SOUND frames, which older clients can't read: the server turns
+ * it back into GZIP for them.
+ * from version 6 the server follows its CodecList reply with the
+ * SessionFormat (TYPE_FORMAT) the client must record and play at. older
+ * clients use SessionFormat.LEGACY, and the server resamples for them.
+ * a TYPE_SILENCE frame can carry comfort noise parameters (see ComfortNoise
+ * in the client): a client that stops sending while its user is quiet sends
+ * one of them first. older versions skip them.
+ * from version 7 every frame on the TCP connection, both ways, is preceded by
+ * its sequence number like a datagram, so a sound frame keeps the number its
+ * client gave it whichever way it goes. with older versions the server
+ * numbers the frames it receives over TCP itself.
+ * this class is the same in the server and in the client
+ *
+ */
+public class FrameCodec {
+
+    public static final int MAGIC = 0x56434246; //"VCBF"
+    public static final byte VERSION = 7; //highest version supported by this code
+    public static final byte MEDIA_VERSION = 2; //first version that can send sound frames over UDP
+    public static final byte LEVEL_VERSION = 3; //first version whose clients send the level of their voice
+    public static final byte ROOM_VERSION = 4; //first version that can join rooms
+    public static final byte CODEC_VERSION = 5; //first version that negotiates codecs
+    public static final byte FORMAT_VERSION = 6; //first version that records and plays at the rate chosen by the server
+    public static final byte SEQ_VERSION = 7; //first version that sends the sequence numbers over TCP too
+    public static final byte FRAME_VERSION = 1; //layout of the frames, written in each of them
+    public static final int HELLO_LENGTH = 5; //MAGIC + version
+    public static final byte TYPE_SOUND = 1; //payload is a SoundPacket's data
+    public static final byte TYPE_SILENCE = 2; //SoundPacket with no data, comfort noise will be played. payload is the comfort noise parameters, if any
+    public static final byte TYPE_MEDIA = 3; //payload is a MediaSession: token(long) port(int)
+    public static final byte TYPE_LEVEL_SOUND = 4; //payload is the level of the voice (byte, 0-127) followed by a SoundPacket's data
+    public static final byte TYPE_ROOM = 5; //payload is a RoomControl: action(byte) room name(UTF-8, the rest of the frame)
+    public static final byte TYPE_CODED_SOUND = 6; //payload is the SpeechCodec (byte) and the level (byte, -1 if unknown) followed by a SoundPacket's data
+    public static final byte TYPE_CODECS = 7; //payload is a CodecList: the ids of the codecs (bytes)
+    public static final byte TYPE_FORMAT = 8; //payload is a SessionFormat: sample rate(int, Hz) frame duration(byte, ms)
+    public static final int MAX_ROOM_NAME = 255; //bytes
+    public static final int MAX_CODECS = 128;
+    public static final int MAX_NOISE = 32; //bytes of comfort noise parameters, longer ones are ignored
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final int HEADER_LENGTH = 22; //bytes after the length field and before the payload
+    public static final int MAX_FRAME = 65536; //longer frames are considered corrupted
+    public static final int MAX_DATAGRAM = 65507; //biggest UDP payload, longer frames always go over TCP
+    private static final int MEDIA_LENGTH = 12;
+    private static final int FORMAT_LENGTH = 5;
+    public static final int OBJECT_STREAM_RESET_INTERVAL = 100; //with old clients, reset the ObjectOutputStream every this many messages so it doesn't keep all of them in memory
+    public static final byte[] OBJECT_STREAM_HEADER = {(byte) (ObjectStreamConstants.STREAM_MAGIC >> 8), (byte) ObjectStreamConstants.STREAM_MAGIC, (byte) (ObjectStreamConstants.STREAM_VERSION >> 8), (byte) ObjectStreamConstants.STREAM_VERSION};
+
+    /**
+     * returns how many bytes encode() will write for this message
+     */
+    public static int encodedLength(Message m) {
+        return encodedLength(m, false);
+    }
+
+    /**
+     * returns how many bytes encode() will write for this message, with or
+     * without its level
+     */
+    public static int encodedLength(Message m, boolean level) {
+        if (m.getData() instanceof MediaSession) {
+            return 4 + HEADER_LENGTH + MEDIA_LENGTH;
+        }
+        if (m.getData() instanceof RoomControl) {
+            return 4 + HEADER_LENGTH + 1 + roomName(m).length;
+        }
+        if (m.getData() instanceof CodecList) {
+            return 4 + HEADER_LENGTH + ((CodecList) m.getData()).getIds().length;
+        }
+        if (m.getData() instanceof SessionFormat) {
+            return 4 + HEADER_LENGTH + FORMAT_LENGTH;
+        }
+        byte[] data = soundData(m);
+        if (data == null) {
+            return 4 + HEADER_LENGTH + noiseLength(m);
+        }
+        int length = ((SoundPacket) m.getData()).getLength();
+        if (coded(m)) {
+            return 4 + HEADER_LENGTH + 2 + length;
+        }
+        return 4 + HEADER_LENGTH + length + (withLevel(m, level) ? 1 : 0);
+    }
+
+    /**
+     * writes a message to the buffer, which must have at least
+     * encodedLength(m) bytes remaining. only messages carrying a SoundPacket,
+     * a MediaSession, a RoomControl, a CodecList or a SessionFormat can be
+     * encoded
+     */
+    public static void encode(Message m, ByteBuffer b) {
+        encode(m, b, false);
+    }
+
+    /**
+     * like encode(m, b), but writes the level of sound frames too if level is
+     * true and the message has one. used by clients when the server
+     * negotiated LEVEL_VERSION
+     */
+    public static void encode(Message m, ByteBuffer b, boolean level) {
+        if (m.getData() instanceof MediaSession) {
+            MediaSession session = (MediaSession) m.getData();
+            header(m, TYPE_MEDIA, MEDIA_LENGTH, b);
+            b.putLong(session.getToken());
+            b.putInt(session.getPort());
+            return;
+        }
+        if (m.getData() instanceof RoomControl) {
+            byte[] name = roomName(m);
+            header(m, TYPE_ROOM, 1 + name.length, b);
+            b.put(((RoomControl) m.getData()).getAction());
+            b.put(name);
+            return;
+        }
+        if (m.getData() instanceof CodecList) {
+            byte[] ids = ((CodecList) m.getData()).getIds();
+            header(m, TYPE_CODECS, ids.length, b);
+            b.put(ids);
+            return;
+        }
+        if (m.getData() instanceof SessionFormat) {
+            SessionFormat format = (SessionFormat) m.getData();
+            header(m, TYPE_FORMAT, FORMAT_LENGTH, b);
+            b.putInt(format.getSampleRate());
+            b.put((byte) format.getFrameMs());
+            return;
+        }
+        byte[] data = soundData(m);
+        int length = data == null ? 0 : ((SoundPacket) m.getData()).getLength(); //of data, which can be longer
+        if (data == null) {
+            header(m, TYPE_SILENCE, noiseLength(m), b);
+            if (noiseLength(m) > 0) {
+                b.put(((SoundPacket) m.getData()).getNoise());
+            }
+        } else if (coded(m)) { //always with the level, it's just a byte
+            header(m, TYPE_CODED_SOUND, length + 2, b);
+            b.put((byte) ((SoundPacket) m.getData()).getCodec());
+            b.put((byte) m.getLevel());
+            b.put(data, 0, length);
+        } else if (withLevel(m, level)) {
+            header(m, TYPE_LEVEL_SOUND, length + 1, b);
+            b.put((byte) m.getLevel());
+            b.put(data, 0, length);
+        } else {
+            header(m, TYPE_SOUND, length, b);
+            b.put(data, 0, length);
+        }
+    }
+
+    /**
+     * writes a message to be sent on a TCP connection that uses version: the
+     * frame, preceded by its sequence number from SEQ_VERSION. the buffer
+     * must have at least encodedLength(m, level)+4 bytes remaining
+     */
+    public static void encode(Message m, ByteBuffer b, boolean level, int version) {
+        if (version >= SEQ_VERSION) {
+            encodeDatagram(m, b, level);
+        } else {
+            encode(m, b, level);
+        }
+    }
+
+    private static byte[] roomName(Message m) {
+        byte[] name = ((RoomControl) m.getData()).getRoom().getBytes(UTF8);
+        if (name.length > MAX_ROOM_NAME) {
+            throw new IllegalArgumentException("room name too long");
+        }
+        return name;
+    }
+
+    private static boolean coded(Message m) { //not GZIP, needs TYPE_CODED_SOUND
+        return ((SoundPacket) m.getData()).getCodec() != Codecs.GZIP;
+    }
+
+    private static int noiseLength(Message m) {
+        byte[] noise = ((SoundPacket) m.getData()).getNoise();
+        return noise == null || noise.length > MAX_NOISE ? 0 : noise.length;
+    }
+
+    private static boolean withLevel(Message m, boolean level) {
+        return level && m.getLevel() >= 0;
+    }
+
+    private static void header(Message m, byte type, int payload, ByteBuffer b) {
+        b.putInt(HEADER_LENGTH + payload);
+        b.put(FRAME_VERSION);
+        b.put(type);
+        b.putLong(m.getChId());
+        b.putLong(m.getTimestamp());
+        b.putInt((int) m.getTtl());
+    }
+
+    private static byte[] soundData(Message m) {
+        if (!(m.getData() instanceof SoundPacket)) {
+            throw new IllegalArgumentException("only sound packets can be encoded");
+        }
+        return ((SoundPacket) m.getData()).getData();
+    }
+
+    /**
+     * writes a message to be sent in a datagram: its sequence number followed
+     * by the frame. the buffer must have at least encodedLength(m)+4 bytes
+     * remaining
+     */
+    public static void encodeDatagram(Message m, ByteBuffer b) {
+        encodeDatagram(m, b, false);
+    }
+
+    /**
+     * like encodeDatagram(m, b), with the level if level is true
+     */
+    public static void encodeDatagram(Message m, ByteBuffer b, boolean level) {
+        b.putInt(m.getSeq());
+        encode(m, b, level);
+    }
+
+    /**
+     * reads a datagram, which must fill the buffer from its position to its
+     * limit
+     */
+    public static Message decodeDatagram(ByteBuffer b) throws IOException {
+        if (b.remaining() < 8 || b.getInt(b.position() + 4) != b.remaining() - 8) {
+            throw new StreamCorruptedException("invalid datagram");
+        }
+        int seq = b.getInt();
+        Message m = decode(b);
+        m.setSeq(seq);
+        return m;
+    }
+
+    /**
+     * reads a frame from the buffer, starting at its position. returns null,
+     * without moving the position, if the frame is not complete yet
+     */
+    public static Message decode(ByteBuffer b) throws IOException {
+        if (b.remaining() < 4) {
+            return null;
+        }
+        int len = b.getInt(b.position());
+        checkLength(len);
+        if (b.remaining() < 4 + len) {
+            return null;
+        }
+        b.position(b.position() + 4);
+        return body(b, len);
+    }
+
+    /**
+     * like decode(b), for a TCP connection that uses version: from
+     * SEQ_VERSION the frame is preceded by its sequence number
+     */
+    public static Message decode(ByteBuffer b, int version) throws IOException {
+        if (version < SEQ_VERSION) {
+            return decode(b);
+        }
+        if (b.remaining() < 8) {
+            return null;
+        }
+        int len = b.getInt(b.position() + 4);
+        checkLength(len);
+        if (b.remaining() < 8 + len) {
+            return null;
+        }
+        int seq = b.getInt();
+        b.position(b.position() + 4);
+        Message m = body(b, len);
+        m.setSeq(seq);
+        return m;
+    }
+
+    /**
+     * reads a frame from a stream, blocking until it's complete
+     */
+    public static Message read(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        checkLength(len);
+        byte[] frame = new byte[len];
+        in.readFully(frame);
+        return body(ByteBuffer.wrap(frame), len);
+    }
+
+    /**
+     * like read(in), for a TCP connection that uses version
+     */
+    public static Message read(DataInputStream in, int version) throws IOException {
+        if (version < SEQ_VERSION) {
+            return read(in);
+        }
+        int seq = in.readInt();
+        Message m = read(in);
+        m.setSeq(seq);
+        return m;
+    }
+
+    private static void checkLength(int len) throws StreamCorruptedException {
+        if (len < HEADER_LENGTH || len > MAX_FRAME) {
+            throw new StreamCorruptedException("invalid frame length " + len);
+        }
+    }
+
+    private static Message body(ByteBuffer b, int len) throws IOException {
+        byte version = b.get();
+        if (version != FRAME_VERSION) {
+            throw new StreamCorruptedException("unsupported frame version " + version);
+        }
+        byte type = b.get();
+        long chId = b.getLong();
+        long timestamp = b.getLong();
+        int ttl = b.getInt();
+        byte[] data = null;
+        int level = -1; //unknown
+        int codec = Codecs.GZIP;
+        byte[] noise = null;
+        if (type == TYPE_SOUND) {
+            data = new byte[len - HEADER_LENGTH];
+            b.get(data);
+        } else if (type == TYPE_LEVEL_SOUND && len > HEADER_LENGTH) {
+            level = Math.max(0, b.get());
+            data = new byte[len - HEADER_LENGTH - 1];
+            b.get(data);
+        } else if (type == TYPE_CODED_SOUND && len > HEADER_LENGTH + 2) {
+            codec = b.get();
+            level = Math.max(-1, b.get());
+            data = new byte[len - HEADER_LENGTH - 2];
+            b.get(data);
+        } else if (type == TYPE_CODECS && len <= HEADER_LENGTH + MAX_CODECS) {
+            byte[] ids = new byte[len - HEADER_LENGTH];
+            b.get(ids);
+            Message m = new Message(chId, timestamp, new CodecList(ids));
+            m.setTtl(ttl);
+            return m;
+        } else if (type == TYPE_FORMAT && len == HEADER_LENGTH + FORMAT_LENGTH) {
+            int rate = b.getInt();
+            int frameMs = b.get();
+            if (!SessionFormat.isSupported(rate, frameMs)) {
+                throw new StreamCorruptedException("unsupported format " + rate + "Hz " + frameMs + "ms");
+            }
+            Message m = new Message(chId, timestamp, new SessionFormat(rate, frameMs));
+            m.setTtl(ttl);
+            return m;
+        } else if (type == TYPE_SILENCE) {
+            level = 0;
+            if (len > HEADER_LENGTH && len <= HEADER_LENGTH + MAX_NOISE) {
+                noise = new byte[len - HEADER_LENGTH];
+                b.get(noise);
+            } else {
+                b.position(b.position() + len - HEADER_LENGTH);
+            }
+        } else if (type == TYPE_ROOM && len > HEADER_LENGTH && len <= HEADER_LENGTH + 1 + MAX_ROOM_NAME) {
+            byte action = b.get();
+            byte[] name = new byte[len - HEADER_LENGTH - 1];
+            b.get(name);
+            Message m = new Message(chId, timestamp, new RoomControl(action, new String(name, UTF8)));
+            m.setTtl(ttl);
+            return m;
+        } else if (type == TYPE_MEDIA && len == HEADER_LENGTH + MEDIA_LENGTH) {
+            Message m = new Message(chId, timestamp, new MediaSession(b.getLong(), b.getInt()));
+            m.setTtl(ttl);
+            return m;
+        } else {
+            throw new StreamCorruptedException("unknown frame type " + type);
+        }
+        Message m = new Message(chId, timestamp, data == null ? SoundPacket.silence(noise) : new SoundPacket(data, codec));
+        m.setTtl(ttl);
+        m.setLevel(level);
+        return m;
+    }
+
+    /**
+     * sent by the client after the server's object stream header
+     */
+    public static void writeHello(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * returns the version proposed by a client's hello (0 if invalid), or -1
+     * if the 4 bytes at the buffer's position are not MAGIC (an old client)
+     */
+    public static int readHello(ByteBuffer b) {
+        if (b.getInt(b.position()) != MAGIC) {
+            return -1;
+        }
+        b.position(b.position() + 4);
+        return Math.max(0, b.get());
+    }
+
+    /**
+     * sent by the server in reply to a client's hello, with the version that
+     * will be used from now on
+     */
+    public static void writeHelloReply(ByteBuffer b, int clientVersion) {
+        b.putInt(MAGIC);
+        b.put((byte) Math.min(clientVersion, VERSION));
+    }
+
+    /**
+     * reads the server's reply to our hello and returns the version to be used.
+     * throws an exception if the server doesn't speak this protocol
+     */
+    public static int readHelloReply(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("not a binary protocol reply");
+        }
+        int version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new StreamCorruptedException("unsupported protocol version " + version);
+        }
+        return version;
+    }
+}
@@ -18,6 +18,7 @@ public class GUI extends javax.swing.JFrame {
     //this class is used to test the microphone. it manages the volume meter
     private class MicTester extends Thread{
         private TargetDataLine mic = null;
+        private volatile boolean closed = false;
         public MicTester() {
             
         }
@@ -34,22 +35,19 @@ public class GUI extends javax.swing.JFrame {
                     JOptionPane.showMessageDialog(rootPane,"Microphone not detected.\nPress OK to close this program", "Error",JOptionPane.ERROR_MESSAGE);
                     System.exit(0);
                 }
-                for (;;) {
-                    Utils.sleep(10);
-                    if(mic.available()>0){
-                        byte[] buff=new byte[SoundPacket.defaultDataLenght];
-                        mic.read(buff,0,buff.length);
-                        long tot=0;
-                        for(int i=0;i<buff.length;i++) tot+=MicThread.amplification*Math.abs(buff[i]);
-                        tot*=2.5;
-                        tot/=buff.length;
-                        micLev.setValue((int)tot);
-                    }
+                byte[] buff=new byte[SoundPacket.defaultDataLenght];
+                while (!closed) {
+                    int n=mic.read(buff,0,buff.length); //blocks until the buffer is full, or the line is closed
+                    long tot=0;
+                    for(int i=0;i<n;i++) tot+=Math.abs(buff[i]);
+                    tot*=2.5;
+                    tot/=Math.max(1,n);
+                    micLev.setValue((int)tot);
                 }
             }
         private void close(){
-            if(mic!=null) mic.close();
-            stop();
+            closed=true;
+            if(mic!=null) mic.close(); //wakes up the read
         }
     }
     /**
@@ -75,8 +73,6 @@ public class GUI extends javax.swing.JFrame {
         port = new javax.swing.JTextField();
         jLabel1 = new javax.swing.JLabel();
         micLev = new javax.swing.JProgressBar();
-        jLabel4 = new javax.swing.JLabel();
-        micVol = new javax.swing.JSlider();
         jLabel5 = new javax.swing.JLabel();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
@@ -96,17 +92,6 @@ public class GUI extends javax.swing.JFrame {
 
         jLabel1.setText("IP:");
 
-        jLabel4.setText("Mic Input Volume:");
-
-        micVol.setMaximum(300);
-        micVol.setMinimum(50);
-        micVol.setValue(100);
-        micVol.addChangeListener(new javax.swing.event.ChangeListener() {
-            public void stateChanged(javax.swing.event.ChangeEvent evt) {
-                micVolStateChanged(evt);
-            }
-        });
-
         jLabel5.setText("Port:");
 
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
@@ -126,10 +111,6 @@ public class GUI extends javax.swing.JFrame {
                         .addComponent(port, javax.swing.GroupLayout.PREFERRED_SIZE, 44, javax.swing.GroupLayout.PREFERRED_SIZE)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                         .addComponent(start, javax.swing.GroupLayout.DEFAULT_SIZE, 123, Short.MAX_VALUE))
-                    .addGroup(layout.createSequentialGroup()
-                        .addComponent(jLabel4)
-                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
-                        .addComponent(micVol, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                     .addComponent(micLev, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                 .addContainerGap())
         );
@@ -145,10 +126,6 @@ public class GUI extends javax.swing.JFrame {
                     .addComponent(start))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(micLev, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
-                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING, false)
-                    .addComponent(micVol, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-                    .addComponent(jLabel4, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
@@ -168,15 +145,10 @@ public class GUI extends javax.swing.JFrame {
         port.setEnabled(false);
         start.setEnabled(false);
         start.setText("Connected");
-        micVol.setEnabled(false);
         
         
     }//GEN-LAST:event_startActionPerformed
 
-    private void micVolStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_micVolStateChanged
-        MicThread.amplification=((double)(micVol.getValue()))/100.0;
-    }//GEN-LAST:event_micVolStateChanged
-
     /**
      * @param args the command line arguments
      */
@@ -222,10 +194,8 @@ public class GUI extends javax.swing.JFrame {
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JTextField ip;
     private javax.swing.JLabel jLabel1;
-    private javax.swing.JLabel jLabel4;
     private javax.swing.JLabel jLabel5;
     private javax.swing.JProgressBar micLev;
-    private javax.swing.JSlider micVol;
     private javax.swing.JTextField port;
     private javax.swing.JButton start;
     // End of variables declaration//GEN-END:variables
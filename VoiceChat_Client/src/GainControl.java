@@ -0,0 +1,67 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * automatic gain control: brings the voice of every user to the same level,
+ * whatever their microphone and how far they sit from it. the level of the
+ * speech is followed by an envelope that rises quickly (attack) and falls
+ * slowly (release), and the gain is what takes that level to the target. the
+ * gain only adapts on frames the VoiceDetector says are speech, so the
+ * background noise isn't raised during pauses, and it moves smoothly along
+ * each frame. the peaks that would still clip go through a soft limiter
+ * instead of wrapping around. works in place, on the captured frames.
+ * used only by the MicThread
+ *
+ */
+public class GainControl {
+
+    private static final double TARGET_DB = -20; //dBFS, RMS level of the speech after the gain
+    private static final double MAX_GAIN_DB = 30; //for very quiet microphones
+    private static final double MIN_GAIN_DB = -20;
+    private static final double ATTACK_MS = 20; //time constant of the envelope when the voice gets louder
+    private static final double RELEASE_MS = 1000; //and when it gets quieter
+    private static final double KNEE = 0.7 * 32767; //the limiter leaves the samples below this alone
+    private final double attack, release; //fraction of the distance the envelope covers in a frame
+    private double envelope = TARGET_DB; //dBFS, level of the speech
+    private double gain = 1; //applied at the end of the last frame
+
+    public GainControl(int frameMs) {
+        attack = 1 - Math.exp(-frameMs / ATTACK_MS);
+        release = 1 - Math.exp(-frameMs / RELEASE_MS);
+    }
+
+    /**
+     * applies the gain to a frame, adapting it first if speech is true
+     */
+    public void process(short[] samples, int len, boolean speech) {
+        if (speech) {
+            double sum = 0;
+            for (int i = 0; i < len; i++) {
+                sum += (double) samples[i] * samples[i];
+            }
+            double level = 10 * Math.log10(Math.max(1, sum / Math.max(1, len)) / (32768.0 * 32768.0));
+            envelope += (level - envelope) * (level > envelope ? attack : release);
+        }
+        double target = Math.pow(10, Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, TARGET_DB - envelope)) / 20);
+        double g = gain, step = (target - gain) / Math.max(1, len); //a ramp, so the gain doesn't jump between frames
+        for (int i = 0; i < len; i++) {
+            g += step;
+            samples[i] = limit(samples[i] * g);
+        }
+        gain = target;
+    }
+
+    private static short limit(double v) { //soft clipping above KNEE, tends to full scale
+        double a = Math.abs(v);
+        if (a <= KNEE) {
+            return (short) v;
+        }
+        a = KNEE + (32767 - KNEE) * Math.tanh((a - KNEE) / (32767 - KNEE));
+        return (short) (v < 0 ? -a : a);
+    }
+
+    public double getGainDb() { //at the end of the last frame
+        return 20 * Math.log10(gain);
+    }
+}
@@ -0,0 +1,192 @@
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * reads and writes the GZIP data that clients put in SoundPackets, and the
+ * raw deflate data of the DEFLATE codec, reusing the same Inflater, Deflater
+ * and CRC32 every time instead of creating new streams for each packet.
+ * each of them holds native zlib memory, so there's one instance per thread,
+ * shared by all the codecs running on it: get it with forThread()
+ *
+ */
+public class GzipCodec {
+
+    private static final int HEADER_LENGTH = 10;
+    private static final int TRAILER_LENGTH = 8; //crc32 and uncompressed size
+    private static final int FEXTRA = 4, FNAME = 8, FCOMMENT = 16, FHCRC = 2; //optional header fields
+    private static final ThreadLocal<GzipCodec> pool = new ThreadLocal<GzipCodec>() {
+        @Override
+        protected GzipCodec initialValue() {
+            return new GzipCodec();
+        }
+    }; //the instance of each thread
+    private final Inflater inflater = new Inflater(true); //raw deflate, we parse the GZIP header and trailer ourselves
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+
+    private GzipCodec() {
+    }
+
+    /**
+     * the instance of the calling thread
+     */
+    public static GzipCodec forThread() {
+        return pool.get();
+    }
+
+    /**
+     * the longest GZIP member deflate() can produce from len bytes
+     */
+    public static int maxDeflatedLength(int len) {
+        return HEADER_LENGTH + maxRawDeflatedLength(len) + TRAILER_LENGTH;
+    }
+
+    /**
+     * the longest raw deflate data deflateRaw() can produce from len bytes
+     */
+    public static int maxRawDeflatedLength(int len) {
+        return len + len / 1000 * 5 + 64; //deflate never grows data by more than 5 bytes every 16k, plus a few
+    }
+
+    /**
+     * decompresses a GZIP member into dst and returns its length
+     */
+    public int inflate(byte[] gz, byte[] dst) throws IOException {
+        return inflate(gz, gz.length, dst, dst.length);
+    }
+
+    /**
+     * decompresses a GZIP member, the first len bytes of gz, into the first
+     * dstLen bytes of dst and returns its length
+     */
+    public int inflate(byte[] gz, int len, byte[] dst, int dstLen) throws IOException {
+        int p = header(gz, len);
+        int n = inflate(gz, p, len - p, dst, dstLen);
+        int t = len - inflater.getRemaining();
+        if (len - t < TRAILER_LENGTH) {
+            throw new IOException("truncated gzip data");
+        }
+        crc.reset();
+        crc.update(dst, 0, n);
+        if (le32(gz, t) != (int) crc.getValue() || le32(gz, t + 4) != n) {
+            throw new IOException("corrupted gzip data");
+        }
+        return n;
+    }
+
+    /**
+     * decompresses raw deflate data, the first len bytes of in, into the
+     * first dstLen bytes of dst and returns its length
+     */
+    public int inflateRaw(byte[] in, int len, byte[] dst, int dstLen) throws IOException {
+        return inflate(in, 0, len, dst, dstLen);
+    }
+
+    private int inflate(byte[] in, int off, int len, byte[] dst, int dstLen) throws IOException {
+        inflater.reset();
+        inflater.setInput(in, off, len);
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                int r = inflater.inflate(dst, n, dstLen - n);
+                if (r == 0 && !inflater.finished()) { //needs more input or more space
+                    throw new IOException("truncated or too long deflate data");
+                }
+                n += r;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("corrupted deflate data");
+        }
+        return n;
+    }
+
+    /**
+     * compresses len bytes of src into out, which must have at least
+     * maxDeflatedLength(len) bytes, and returns the length of the GZIP member
+     */
+    public int deflate(byte[] src, int len, byte[] out) {
+        out[0] = 0x1f;
+        out[1] = (byte) 0x8b;
+        out[2] = 8; //deflate
+        for (int i = 3; i < HEADER_LENGTH; i++) { //no flags, no time, unknown os
+            out[i] = 0;
+        }
+        int n = HEADER_LENGTH + deflate(src, len, out, HEADER_LENGTH, out.length - TRAILER_LENGTH);
+        crc.reset();
+        crc.update(src, 0, len);
+        putLe32(out, n, (int) crc.getValue());
+        putLe32(out, n + 4, len);
+        return n + TRAILER_LENGTH;
+    }
+
+    /**
+     * compresses len bytes of src into out, which must have at least
+     * maxRawDeflatedLength(len) bytes, and returns the length of the raw
+     * deflate data
+     */
+    public int deflateRaw(byte[] src, int len, byte[] out) {
+        return deflate(src, len, out, 0, out.length);
+    }
+
+    private int deflate(byte[] src, int len, byte[] out, int off, int end) { //returns the length of the data written from off
+        deflater.reset();
+        deflater.setInput(src, 0, len);
+        deflater.finish();
+        int n = off;
+        while (!deflater.finished()) {
+            n += deflater.deflate(out, n, end - n);
+        }
+        return n - off;
+    }
+
+    private static int header(byte[] gz, int len) throws IOException { //returns the position of the compressed data
+        if (len < HEADER_LENGTH + TRAILER_LENGTH || gz[0] != 0x1f || gz[1] != (byte) 0x8b || gz[2] != 8) {
+            throw new IOException("not gzip data");
+        }
+        int flags = gz[3];
+        int p = HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            p += 2 + ((gz[p] & 0xff) | (gz[p + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            p = skipString(gz, len, p);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            p = skipString(gz, len, p);
+        }
+        if ((flags & FHCRC) != 0) {
+            p += 2;
+        }
+        if (p > len) {
+            throw new IOException("truncated gzip header");
+        }
+        return p;
+    }
+
+    private static int skipString(byte[] b, int len, int p) {
+        while (p < len && b[p] != 0) {
+            p++;
+        }
+        return p + 1;
+    }
+
+    private static int le32(byte[] b, int p) {
+        return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | (b[p + 3] & 0xff) << 24;
+    }
+
+    private static void putLe32(byte[] b, int p, int v) {
+        b[p] = (byte) v;
+        b[p + 1] = (byte) (v >> 8);
+        b[p + 2] = (byte) (v >> 16);
+        b[p + 3] = (byte) (v >> 24);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * uncompressed 16 bit PCM, big endian. the most bandwidth, no loss and no CPU
+ *
+ */
+public class L16Codec implements SpeechCodec {
+
+    @Override
+    public int getId() {
+        return Codecs.L16;
+    }
+
+    @Override
+    public String getName() {
+        return "L16";
+    }
+
+    @Override
+    public int maxEncodedLength(int samples) {
+        return samples * 2;
+    }
+
+    @Override
+    public int encode(short[] pcm, int samples, byte[] out) {
+        for (int i = 0; i < samples; i++) {
+            out[2 * i] = (byte) (pcm[i] >> 8);
+            out[2 * i + 1] = (byte) pcm[i];
+        }
+        return samples * 2;
+    }
+
+    @Override
+    public int decode(byte[] in, int len, short[] pcm) {
+        int n = Math.min(len / 2, pcm.length);
+        for (int i = 0; i < n; i++) {
+            pcm[i] = (short) (in[2 * i] << 8 | (in[2 * i + 1] & 0xff));
+        }
+        return n;
+    }
+}
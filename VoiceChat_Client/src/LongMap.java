@@ -0,0 +1,115 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * a hash map from long keys (the chIds) to objects, without boxing the keys:
+ * open addressing with linear probing in two arrays, kept at most half full.
+ * finding a user's state takes the same time however many users there are,
+ * and nothing is allocated except when the map grows. values can't be null.
+ * not thread safe.
+ * this class is the same in the server and in the client
+ *
+ */
+public class LongMap<V> {
+
+    private long[] keys = new long[16]; //length is a power of 2
+    private Object[] values = new Object[16]; //null where the slot is free
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * returns the value of key, null if there's none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * sets the value of key, returns the one it replaced (null if none)
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null value");
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return null;
+    }
+
+    /**
+     * removes key, returns its value (null if it had none)
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        if (values[i] == null) {
+            return null;
+        }
+        V old = (V) values[i];
+        values[i] = null;
+        size--;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) { //move back the entries that probed past the freed slot
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return old;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(long key) { //chIds differ mostly in a few bits (IP and port), spread them
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,110 @@
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/*
+ * To change this template, choose Tools | Templates and open the template in
+ * the editor.
+ */
+/**
+ * sends and receives sound frames over UDP, when the server offers it. first
+ * it registers this client's address by sending back the MediaSession
+ * received over TCP, until the server echoes it. if the server never answers
+ * (a firewall, a NAT dropping UDP) it gives up and everything keeps going over
+ * TCP. once registered, it sends the MediaSession again every few seconds so
+ * NATs don't forget the mapping
+ *
+ */
+public class MediaChannel extends Thread {
+
+    private static final int REGISTER_INTERVAL = 500; //ms between registration attempts
+    private static final int REGISTER_ATTEMPTS = 10;
+    private static final int KEEPALIVE_INTERVAL = 10000; //ms between registrations once UDP works
+    private Client client; //gets the frames received
+    private DatagramSocket s; //connected to the server's UDP port
+    private MediaSession session;
+    private volatile boolean registered = false; //true when the server confirmed our address
+    private ByteBuffer out = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM); //used by send(), the Client calls it from one thread at a time
+
+    public MediaChannel(Client client, InetAddress server, MediaSession session) throws IOException {
+        this.client = client;
+        this.session = session;
+        s = new DatagramSocket();
+        s.connect(server, session.getPort());
+        s.setSoTimeout(REGISTER_INTERVAL);
+    }
+
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    /**
+     * sends a message to the server, with its level if level is true. returns
+     * false if it's too big for a datagram
+     */
+    public boolean send(Message m, boolean level) throws IOException {
+        if (FrameCodec.encodedLength(m, level) + 4 > FrameCodec.MAX_DATAGRAM) {
+            return false;
+        }
+        out.clear();
+        FrameCodec.encodeDatagram(m, out, level);
+        s.send(new DatagramPacket(out.array(), out.position()));
+        return true;
+    }
+
+    public void close() {
+        registered = false;
+        s.close();
+    }
+
+    @Override
+    public void run() {
+        byte[] in = new byte[FrameCodec.MAX_DATAGRAM];
+        DatagramPacket p = new DatagramPacket(in, in.length);
+        Message register = new Message(-1, -1, session);
+        byte[] r = new byte[FrameCodec.encodedLength(register) + 4];
+        FrameCodec.encodeDatagram(register, ByteBuffer.wrap(r));
+        long lastRegister = 0;
+        int attempts = 0;
+        try {
+            for (;;) {
+                long now = System.nanoTime() / 1000000L;
+                if (now - lastRegister >= (registered ? KEEPALIVE_INTERVAL : REGISTER_INTERVAL)) {
+                    if (!registered && attempts++ == REGISTER_ATTEMPTS) {
+                        System.out.println("no answer over UDP, using TCP");
+                        close();
+                        return;
+                    }
+                    s.send(new DatagramPacket(r, r.length));
+                    lastRegister = now;
+                }
+                try {
+                    p.setLength(in.length);
+                    s.receive(p);
+                } catch (SocketTimeoutException ex) {
+                    continue;
+                }
+                Message m;
+                try {
+                    m = FrameCodec.decodeDatagram(ByteBuffer.wrap(in, 0, p.getLength()));
+                } catch (IOException ex) { //corrupted datagram, ignore it
+                    continue;
+                }
+                if (m.getData() instanceof MediaSession) {
+                    if (((MediaSession) m.getData()).getToken() == session.getToken()) { //the server knows our address now
+                        registered = true;
+                    }
+                } else {
+                    client.deliver(m, true);
+                }
+            }
+        } catch (IOException ex) { //socket closed or network error, the Client will use TCP
+            System.out.println("UDP error " + ex);
+            close();
+        }
+    }
+}
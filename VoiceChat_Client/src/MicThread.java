@@ -1,78 +1,116 @@
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.zip.GZIPOutputStream;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
+import java.util.concurrent.TimeUnit;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.TargetDataLine;
 
 /*
  * To change this template, choose Tools | Templates
  * and open the template in the editor.
  */
 /**
- * reads data from microphone and sends it to the server
+ * encodes the frames captured from the microphone by a CaptureThread and sends
+ * them to the server, each with the sequence number it was captured with.
+ * their volume is set by a GainControl.
+ * discontinuous transmission: when the VoiceDetector says the user stopped
+ * talking, one silence packet describing the background noise is sent, then
+ * nothing until speech resumes. the sequence numbers keep going during the
+ * silence, so the receivers know how much time passed
  *
  *  
  */
 public class MicThread extends Thread {
 
-    public static double amplification = 1.0;
-    private ObjectOutputStream toServer;
-    private TargetDataLine mic;
+    private static final long MAX_DELAY = 200000000L; //ns, a frame that waited longer than this to be sent is thrown away
+    private Client toServer;
+    private CaptureThread capture;
+    private SpeechCodec codec; //encodes what we send, with the codec negotiated by the Client
+    private byte[] encoded = new byte[0];
+    private VoiceDetector vad;
+    private GainControl agc;
+    private ComfortNoise.Analyzer noise; //learns the spectrum of the background noise, described in the silence packet
+    private boolean talking = true; //false after the silence packet was sent. true at first, so a user who starts quiet sends one too
+    private volatile long suppressed = 0; //frames not sent because they were silence
+    private volatile long stale = 0; //frames thrown away because they waited too long
+    private volatile boolean closed = false;
 
-    public MicThread(ObjectOutputStream toServer) throws LineUnavailableException {
+    public MicThread(Client toServer, SessionFormat format) throws LineUnavailableException {
         this.toServer = toServer;
-        //open microphone line, an exception is thrown in case of error
-        AudioFormat af = SoundPacket.defaultFormat;
-        DataLine.Info info = new DataLine.Info(TargetDataLine.class, null);
-        mic = (TargetDataLine) (AudioSystem.getLine(info));
-        mic.open(af);
-        mic.start();
+        capture = new CaptureThread(format); //opens the microphone, an exception is thrown in case of error
+        vad = new VoiceDetector(format.getSampleRate(), format.getFrameMs());
+        agc = new GainControl(format.getFrameMs());
+        noise = new ComfortNoise.Analyzer(format.getSampleRate());
     }
 
     @Override
     public void run() {
-        for (;;) {
-            if (mic.available() >= SoundPacket.defaultDataLenght) { //we got enough data to send
-                byte[] buff = new byte[SoundPacket.defaultDataLenght];
-                while (mic.available() >= SoundPacket.defaultDataLenght) { //flush old data from mic to reduce lag, and read most recent data
-                    mic.read(buff, 0, buff.length); //read from microphone
-                }
-                try {
-                    //this part is used to decide whether to send or not the packet. if volume is too low, an empty packet will be sent and the remote client will play some comfort noise
-                    long tot = 0;
-                    for (int i = 0; i < buff.length; i++) {
-                        buff[i] *= amplification;
-                        tot += Math.abs(buff[i]);
-                    }
-                    tot *= 2.5;
-                    tot /= buff.length;
-                    //create and send packet
-                    Message m = null;
-                    if (tot == 0) {//send empty packet
-                        m = new Message(-1, -1, new SoundPacket(null));
-                    } else { //send data
-                        //compress the sound packet with GZIP
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        GZIPOutputStream go = new GZIPOutputStream(baos);
-                        go.write(buff);
-                        go.flush();
-                        go.close();
-                        baos.flush();
-                        baos.close();
-                        m = new Message(-1, -1, new SoundPacket(baos.toByteArray()));  //create message for server, will generate chId and timestamp from this computer's IP and this socket's port 
-                    }
-                    toServer.writeObject(m); //send message
-                } catch (IOException ex) { //connection error
-                    stop();
+        capture.start();
+        CaptureRing ring = capture.getRing();
+        while (!closed) {
+            CaptureRing.Frame f = ring.take(100, TimeUnit.MILLISECONDS);
+            if (f == null) {
+                continue;
+            }
+            try {
+                if (System.nanoTime() - f.getCaptureNanos() > MAX_DELAY) { //we fell behind, don't add to the lag. the receivers conceal it
+                    stale++;
+                    continue;
                 }
-            } else {
-                Utils.sleep(10); //sleep to avoid busy wait
+                send(f);
+            } catch (IOException ex) { //connection error
+                close();
+            } finally {
+                ring.release();
+            }
+        }
+    }
+
+    private void send(CaptureRing.Frame f) throws IOException {
+        short[] buff = f.getSamples();
+        boolean speech = vad.isSpeech(buff, buff.length); //on what the microphone gave, the detector follows its noise
+        agc.process(buff, buff.length, speech);
+        long tot = 0;
+        for (int i = 0; i < buff.length; i++) {
+            tot += Math.abs(buff[i]) >> 8; //on the 8 bit scale of the first versions
+        }
+        int level = (int) Math.min(Byte.MAX_VALUE, tot / buff.length); //average amplitude, the server uses it to find who's talking the loudest
+        //create and send packet
+        Message m = null;
+        if (!speech) {
+            noise.update(buff, buff.length);
+            if (!talking) { //the receivers are already playing comfort noise
+                suppressed++;
+                return;
             }
+            talking = false;
+            m = new Message(-1, -1, SoundPacket.silence(noise.describe(vad.getNoise() + agc.getGainDb())));
+        } else { //send data
+            talking = true;
+            //compress the sound packet with the SpeechCodec
+            if (codec == null || codec.getId() != toServer.getCodec()) {
+                codec = Codecs.create(toServer.getCodec());
+                encoded = new byte[codec.maxEncodedLength(buff.length)];
+            }
+            int len = codec.encode(buff, buff.length, encoded);
+            m = new Message(-1, -1, new SoundPacket(encoded, len, codec.getId()));  //create message for server, will generate chId and timestamp from this computer's IP and this socket's port. encoded is reused for the next frame, toServer.send() is done with it when it returns
         }
+        m.setLevel(level);
+        m.setSeq(f.getSeq()); //a frame the CaptureThread dropped leaves a gap
+        toServer.send(m); //send message
+    }
+
+    public long getSuppressed() { //silent frames that weren't sent
+        return suppressed;
+    }
+
+    public long getDropped() { //frames captured but never sent, because we were too slow
+        return capture.getDropped() + stale;
+    }
+
+    /**
+     * stops capturing and sending
+     */
+    public void close() {
+        closed = true;
+        capture.close();
     }
 }
@@ -0,0 +1,162 @@
+
+import java.io.IOException;
+import java.util.ArrayList;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * plays the sound of all the users through one line to the sound card. every
+ * 20ms it takes a tick of samples from each AudioChannel (a jitter buffer),
+ * sums them, clips the sum to 16 bit and writes it to the line. the line only
+ * has room for a few ticks, so writing blocks and the sound card's clock paces
+ * the mixing. everything is at the rate of the SessionFormat; if the sound
+ * card can't play it, it plays at a rate it supports and a Resampler converts
+ * the mix.
+ * messages are decoded as they arrive, with one instance of each SpeechCodec
+ * for everybody
+ *
+ *  
+ */
+public class MixerThread extends Thread {
+
+    private static final int TICK_MS = 20; //duration of a mixed tick
+    private static final int[] DEVICE_RATES = {48000, 44100, 16000, 8000}; //tried in this order when the sound card can't play at the session's rate
+    private static final int LINE_TICKS = 4; //ticks buffered by the line, the latency it adds
+    private static final int MAX_PACKET = 65536; //longest decompressed packet
+    private final int tickSamples; //samples mixed each tick
+    private final ArrayList<AudioChannel> chs = new ArrayList<AudioChannel>(); //one for each user we're hearing
+    private final LongMap<AudioChannel> byChId = new LongMap<AudioChannel>(); //the same, to find the one a message is for
+    private final SpeechCodec[] codecs = new SpeechCodec[FrameCodec.MAX_CODECS]; //one instance of each codec, created when first needed
+    private final short[] pcm = new short[MAX_PACKET];
+    private final float sampleRate; //of the session
+    private final int[] total; //sum of all the channels
+    private final short[] mix; //what is played
+    private final Resampler resampler; //null if the sound card plays at the session's rate
+    private final short[] resampled; //mix at the sound card's rate
+    private final byte[] out; //what is written to the line, little endian
+    private SourceDataLine speaker;
+    private volatile boolean closed = false;
+
+    public MixerThread(SessionFormat format) throws LineUnavailableException {
+        super("MixerThread");
+        sampleRate = format.getSampleRate();
+        tickSamples = Math.round(sampleRate * TICK_MS / 1000f);
+        total = new int[tickSamples];
+        mix = new short[tickSamples];
+        //open channel to sound card, an exception is thrown in case of error
+        AudioFormat af = format.getAudioFormat();
+        speaker = open(af);
+        for (int i = 0; speaker == null && i < DEVICE_RATES.length; i++) {
+            af = SessionFormat.getAudioFormat(DEVICE_RATES[i]);
+            speaker = open(af);
+        }
+        if (speaker == null) {
+            throw new LineUnavailableException("no sound card can play 16 bit mono");
+        }
+        int rate = Math.round(af.getSampleRate());
+        resampler = rate == format.getSampleRate() ? null : new Resampler(format.getSampleRate(), rate);
+        resampled = resampler == null ? mix : new short[resampler.maxOutput(tickSamples)];
+        out = new byte[resampled.length * 2];
+        speaker.start();
+    }
+
+    private static SourceDataLine open(AudioFormat af) throws LineUnavailableException { //returns null if the format is not supported
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, af);
+        if (!AudioSystem.isLineSupported(info)) {
+            return null;
+        }
+        SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+        line.open(af, Math.round(af.getSampleRate() * TICK_MS / 1000f) * LINE_TICKS * af.getFrameSize());
+        return line;
+    }
+
+    /**
+     * decodes a message received from the server and gives it to the
+     * AudioChannel of the user that sent it, creating it if needed. sequenced
+     * is true if it carries a sequence number (it came over UDP, or over TCP
+     * from SEQ_VERSION)
+     */
+    public void add(Message m, boolean sequenced) {
+        if (!(m.getData() instanceof SoundPacket)) { //not a sound packet, trash
+            return;
+        }
+        SoundPacket p = (SoundPacket) m.getData();
+        synchronized (chs) {
+            AudioChannel ch = byChId.get(m.getChId());
+            if (ch == null) { //new AudioChannel is needed
+                ch = new AudioChannel(m.getChId(), sampleRate);
+                chs.add(ch);
+                byChId.put(m.getChId(), ch);
+                chs.notify(); //the mixer may be waiting for someone to talk
+            }
+            if (p.getData() == null) { //sender skipped a packet, it will play comfort noise
+                ch.addSilence(m.getSeq(), sequenced, p.getNoise());
+            } else {
+                try {
+                    ch.add(m.getSeq(), sequenced, pcm, decode(p));
+                } catch (IOException ex) { //not valid audio, ignore it
+                }
+            }
+        }
+    }
+
+    private int decode(SoundPacket p) throws IOException { //decodes to pcm, returns how many samples
+        int id = p.getCodec();
+        if (id < 0 || id >= codecs.length || (codecs[id] == null && (codecs[id] = Codecs.create(id)) == null)) {
+            throw new IOException("unknown codec " + id);
+        }
+        return codecs[id].decode(p.getData(), p.getData().length, pcm);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                synchronized (chs) {
+                    for (int i = chs.size() - 1; i >= 0; i--) { //forget the users that stopped talking
+                        if (chs.get(i).canKill()) {
+                            byChId.remove(chs.remove(i).getChId());
+                        }
+                    }
+                    while (chs.isEmpty()) { //nobody to hear, let the line drain and wait
+                        chs.wait();
+                    }
+                    for (int i = 0; i < tickSamples; i++) {
+                        total[i] = 0;
+                    }
+                    for (AudioChannel c : chs) {
+                        c.mixInto(total, tickSamples);
+                    }
+                }
+                for (int i = 0; i < tickSamples; i++) { //clip to 16 bit
+                    mix[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, total[i]));
+                }
+                int n = resampler == null ? tickSamples : resampler.process(mix, tickSamples, resampled);
+                for (int i = 0; i < n; i++) {
+                    out[2 * i] = (byte) resampled[i];
+                    out[2 * i + 1] = (byte) (resampled[i] >> 8);
+                }
+                speaker.write(out, 0, n * 2); //blocks until the line has room
+            }
+        } catch (InterruptedException e) { //closed
+        } catch (Exception e) { //sound card error, stop
+            System.out.println("mixer error: " + e.toString());
+        }
+        speaker.close();
+    }
+
+    /**
+     * stops playing and releases the sound card
+     */
+    public void close() {
+        closed = true;
+        interrupt();
+    }
+}
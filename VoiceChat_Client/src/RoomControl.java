@@ -0,0 +1,32 @@
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * sent by a client to join a room or to leave it (and go back to the lobby).
+ * the server answers with a JOIN naming the room the client is in now
+ *
+ */
+public class RoomControl {
+
+    public static final byte JOIN = 1;
+    public static final byte LEAVE = 2;
+    public static final String LOBBY = ""; //name of the room where clients start
+    private byte action;
+    private String room; //name of the room, ignored when leaving
+
+    public RoomControl(byte action, String room) {
+        this.action = action;
+        this.room = room;
+    }
+
+    public byte getAction() {
+        return action;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+}
@@ -0,0 +1,81 @@
+
+import javax.sound.sampled.AudioFormat;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * the audio of a session, chosen by the server for all its clients: the sample
+ * rate and the duration of the frames the clients send. samples are always 16
+ * bit mono, and travel in the SpeechCodec each client negotiated. clients that
+ * don't know about it (older than FrameCodec.FORMAT_VERSION) use LEGACY, the
+ * rate of the first versions, and the server resamples what they send and
+ * what they receive
+ *
+ */
+public class SessionFormat {
+
+    public static final int[] RATES = {8000, 11025, 16000, 48000}; //Hz
+    public static final int[] FRAME_DURATIONS = {10, 20, 40}; //ms
+    public static final SessionFormat LEGACY = new SessionFormat(11025, 20);
+    private final int sampleRate;
+    private final int frameMs;
+
+    /**
+     * throws IllegalArgumentException if the rate or the frame duration are
+     * not supported
+     */
+    public SessionFormat(int sampleRate, int frameMs) {
+        if (!isSupported(sampleRate, frameMs)) {
+            throw new IllegalArgumentException("unsupported format " + sampleRate + "Hz " + frameMs + "ms");
+        }
+        this.sampleRate = sampleRate;
+        this.frameMs = frameMs;
+    }
+
+    public static boolean isSupported(int sampleRate, int frameMs) {
+        return contains(RATES, sampleRate) && contains(FRAME_DURATIONS, frameMs);
+    }
+
+    private static boolean contains(int[] values, int v) {
+        for (int x : values) {
+            if (x == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getFrameMs() {
+        return frameMs;
+    }
+
+    public int getFrameSamples() { //samples in a frame
+        return Math.round(sampleRate * frameMs / 1000f);
+    }
+
+    /**
+     * the format of the sound card lines: 16 bit, mono, signed, little endian
+     */
+    public AudioFormat getAudioFormat() {
+        return getAudioFormat(sampleRate);
+    }
+
+    /**
+     * the same at another rate, for sound cards that can't open this one
+     */
+    public static AudioFormat getAudioFormat(float sampleRate) {
+        return new AudioFormat(sampleRate, 16, 1, true, false);
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + "Hz " + frameMs + "ms";
+    }
+}
@@ -1,5 +1,8 @@
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import javax.sound.sampled.AudioFormat;
 
 /*
@@ -12,16 +15,64 @@ import javax.sound.sampled.AudioFormat;
  *  
  */
 public class SoundPacket implements Serializable{
+    private static final long serialVersionUID = -2170979884837463087L; //the value computed for the first version, so old clients can still talk to us after methods are added
     public static AudioFormat defaultFormat=new AudioFormat(11025f, 8, 1, true, true); //11.025khz, 8bit, mono, signed, big endian (changes nothing in 8 bit) ~8kb/s
     public static int defaultDataLenght=900; //send 1000 samples/packet by default
     private byte[] data; //actual data. if null, comfort noise will be played
+    private transient int length; //bytes of data used, the rest of the array is ignored. transient, old clients always send whole arrays
+    private transient int codec; //SpeechCodec the data is encoded with. transient, old clients always use GZIP (0)
+    private transient byte[] noise; //comfort noise parameters of a silence packet, null if the sender didn't give them
 
     public SoundPacket(byte[] data) {
+        this(data, Codecs.GZIP);
+    }
+
+    public SoundPacket(byte[] data, int codec) {
+        this(data, data == null ? 0 : data.length, codec);
+    }
+
+    /**
+     * a packet of the first length bytes of data, which can be a buffer
+     * reused for each frame: it must not change until the packet was sent
+     */
+    public SoundPacket(byte[] data, int length, int codec) {
         this.data = data;
+        this.length = length;
+        this.codec = codec;
+    }
+
+    /**
+     * a silence packet, telling the receivers what comfort noise to play
+     */
+    public static SoundPacket silence(byte[] noise) {
+        SoundPacket p = new SoundPacket(null);
+        p.noise = noise;
+        return p;
     }
 
     public byte[] getData() {
         return data;
     }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public byte[] getNoise() {
+        return noise;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        length = data == null ? 0 : data.length;
+    }
+
+    private Object writeReplace() { //old clients read the whole array, so they get a copy of the bytes used
+        return data == null || length == data.length ? this : new SoundPacket(Arrays.copyOf(data, length), codec);
+    }
     
 }
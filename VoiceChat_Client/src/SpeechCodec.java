@@ -0,0 +1,46 @@
+
+import java.io.IOException;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * a speech codec: turns frames of 16 bit PCM samples into the bytes carried
+ * by a SoundPacket, and back. the codec used by a client is negotiated when it
+ * connects (see CodecList), and each SoundPacket says which codec its data is
+ * in. implementations must not allocate memory for each frame, and need not
+ * be thread safe: every thread gets its own instances from Codecs.create().
+ * new codecs can be plugged in by listing their class in
+ * META-INF/services/SpeechCodec, and need a public constructor with no
+ * arguments
+ *
+ */
+public interface SpeechCodec {
+
+    /**
+     * identifies the codec on the wire, 0-127. the built-in codecs are listed
+     * in Codecs
+     */
+    int getId();
+
+    String getName();
+
+    /**
+     * the most bytes encode() can write for this many samples
+     */
+    int maxEncodedLength(int samples);
+
+    /**
+     * encodes samples from pcm into out, which must have at least
+     * maxEncodedLength(samples) bytes, and returns the bytes written
+     */
+    int encode(short[] pcm, int samples, byte[] out);
+
+    /**
+     * decodes the first len bytes of in into pcm and returns the samples
+     * written. throws an exception if the data is corrupted or doesn't fit
+     */
+    int decode(byte[] in, int len, short[] pcm) throws IOException;
+}
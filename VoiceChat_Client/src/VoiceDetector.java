@@ -0,0 +1,87 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * voice activity detection: decides which captured frames carry speech, so
+ * the MicThread can stop sending during silence. the level of the background
+ * noise is tracked all the time: it follows quieter frames quickly and louder
+ * ones slowly, so speech doesn't raise it but a noisier room does. a frame
+ * that crosses zero as rarely as voiced sounds do is speech if it's a little
+ * above the noise; any other frame must be well above it, and raises the
+ * noise faster (noise crosses zero all the time). after speech, frames keep counting as speech for a hangover time, so
+ * the ends of words and the pauses between them are not cut.
+ * used only by the MicThread
+ *
+ */
+public class VoiceDetector {
+
+    private static final double SPEECH_DB = 12; //a frame this much louder than the noise is speech
+    private static final double VOICED_DB = 6; //a frame this much louder than the noise is speech if it's voiced
+    private static final double VOICED_ZCR = 3000; //zero crossings per second, voiced sounds stay below this
+    private static final double MIN_SPEECH_DB = -55; //dBFS, quieter frames are never speech
+    private static final double FLOOR_DB = -90; //dBFS, the energy of digital silence
+    private static final double NOISE_FALL_MS = 40; //time constant of the noise level when the frames get quieter
+    private static final double NOISE_RISE_DB_PER_S = 2; //how fast the noise level follows louder voiced frames
+    private static final double NOISE_RISE_UNVOICED_DB_PER_S = 20; //and louder frames that sound like noise
+    private static final int HANGOVER_MS = 300;
+    private final int sampleRate;
+    private final double fall; //fraction of the distance covered in a frame when falling
+    private final double rise, riseUnvoiced; //dB per frame when rising
+    private final int hangoverFrames;
+    private double noise = Double.NaN; //dBFS, NaN until the first frame
+    private int hangover = 0; //frames still counted as speech after the last one that was
+    private double lastEnergy = FLOOR_DB; //dBFS
+
+    public VoiceDetector(int sampleRate, int frameMs) {
+        this.sampleRate = sampleRate;
+        fall = 1 - Math.exp(-frameMs / NOISE_FALL_MS);
+        rise = NOISE_RISE_DB_PER_S * frameMs / 1000;
+        riseUnvoiced = NOISE_RISE_UNVOICED_DB_PER_S * frameMs / 1000;
+        hangoverFrames = (HANGOVER_MS + frameMs - 1) / frameMs;
+    }
+
+    /**
+     * returns true if the frame carries speech, or follows one closely enough
+     */
+    public boolean isSpeech(short[] samples, int len) {
+        double sum = 0;
+        int crossings = 0;
+        for (int i = 0; i < len; i++) {
+            sum += (double) samples[i] * samples[i];
+            if (i > 0 && (samples[i] ^ samples[i - 1]) < 0) {
+                crossings++;
+            }
+        }
+        double energy = Math.max(FLOOR_DB, 10 * Math.log10(sum / Math.max(1, len) / (32768.0 * 32768.0)));
+        double zcr = crossings * (double) sampleRate / Math.max(1, len);
+        lastEnergy = energy;
+        if (Double.isNaN(noise)) {
+            noise = energy;
+        }
+        boolean voiced = zcr < VOICED_ZCR;
+        boolean speech = energy > MIN_SPEECH_DB && energy > noise + (voiced ? VOICED_DB : SPEECH_DB);
+        if (energy < noise) {
+            noise += (energy - noise) * fall;
+        } else {
+            noise = Math.min(energy, noise + (voiced ? rise : riseUnvoiced));
+        }
+        if (speech) {
+            hangover = hangoverFrames;
+            return true;
+        }
+        if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        return false;
+    }
+
+    public double getNoise() { //dBFS, level of the background noise
+        return Double.isNaN(noise) ? FLOOR_DB : noise;
+    }
+
+    public double getEnergy() { //dBFS, level of the last frame
+        return lastEnergy;
+    }
+}
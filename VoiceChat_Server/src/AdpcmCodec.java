@@ -0,0 +1,143 @@
+
+import java.io.IOException;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * IMA ADPCM: 4 bits per sample, each one the quantized difference from a
+ * prediction, with a step size that adapts to the signal. every frame starts
+ * with its own state, so it can be decoded even if the previous one was lost:
+ * predictor (the first sample, 16 bit) step index (byte) padding (byte, 1 if
+ * the last nibble is not a sample) and then two samples per byte, low nibble
+ * first
+ *
+ */
+public class AdpcmCodec implements SpeechCodec {
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int[] STEPS = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+        50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+        337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+        2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+        15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767};
+    private static final int[] INDEX = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int ANALYSIS = 16; //samples looked at to choose the first step
+
+    @Override
+    public int getId() {
+        return Codecs.IMA_ADPCM;
+    }
+
+    @Override
+    public String getName() {
+        return "IMA-ADPCM";
+    }
+
+    @Override
+    public int maxEncodedLength(int samples) {
+        return HEADER_LENGTH + samples / 2;
+    }
+
+    @Override
+    public int encode(short[] pcm, int samples, byte[] out) {
+        if (samples == 0) {
+            return 0;
+        }
+        int predictor = pcm[0];
+        int index = firstIndex(pcm, samples);
+        out[0] = (byte) (predictor >> 8);
+        out[1] = (byte) predictor;
+        out[2] = (byte) index;
+        out[3] = (byte) ((samples - 1) % 2);
+        int p = HEADER_LENGTH;
+        for (int i = 1; i < samples; i++) {
+            int step = STEPS[index];
+            int diff = pcm[i] - predictor;
+            int nibble = 0;
+            if (diff < 0) {
+                nibble = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                nibble |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                nibble |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                nibble |= 1;
+                delta += step;
+            }
+            predictor = clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+            index = Math.max(0, Math.min(STEPS.length - 1, index + INDEX[nibble]));
+            if (i % 2 == 1) {
+                out[p] = (byte) nibble;
+            } else {
+                out[p++] |= nibble << 4;
+            }
+        }
+        return HEADER_LENGTH + samples / 2;
+    }
+
+    private static int firstIndex(short[] pcm, int samples) { //the step that fits the differences at the start of the frame
+        int n = Math.min(samples, ANALYSIS);
+        int sum = 0;
+        for (int i = 1; i < n; i++) {
+            sum += Math.abs(pcm[i] - pcm[i - 1]);
+        }
+        int avg = n > 1 ? sum / (n - 1) : 0;
+        int index = 0;
+        while (index < STEPS.length - 1 && STEPS[index] < avg) {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public int decode(byte[] in, int len, short[] pcm) throws IOException {
+        if (len < HEADER_LENGTH || in[2] < 0 || in[2] >= STEPS.length || (in[3] != 0 && in[3] != 1)) {
+            throw new IOException("invalid ADPCM frame");
+        }
+        int samples = 1 + (len - HEADER_LENGTH) * 2 - in[3];
+        if (samples > pcm.length) {
+            throw new IOException("ADPCM frame too long");
+        }
+        int predictor = (short) ((in[0] << 8) | (in[1] & 0xff));
+        int index = in[2];
+        pcm[0] = (short) predictor;
+        for (int i = 1; i < samples; i++) {
+            int b = in[HEADER_LENGTH + (i - 1) / 2];
+            int nibble = i % 2 == 1 ? b & 0x0f : (b >> 4) & 0x0f;
+            int step = STEPS[index];
+            int delta = step >> 3;
+            if ((nibble & 4) != 0) {
+                delta += step;
+            }
+            if ((nibble & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((nibble & 1) != 0) {
+                delta += step >> 2;
+            }
+            predictor = clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+            index = Math.max(0, Math.min(STEPS.length - 1, index + INDEX[nibble]));
+            pcm[i] = (short) predictor;
+        }
+        return samples;
+    }
+
+    private static int clamp(int v) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+    }
+}
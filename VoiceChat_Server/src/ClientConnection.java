@@ -1,112 +1,333 @@
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * To change this template, choose Tools | Templates and open the template in
  * the editor.
  */
 /**
- * this thread manages a connection with a client. it does a lot of stuff: -read
- * messages from client -add said messages to the server's broadcast queue
- * -receive messages from the server thread -add said messages to a send queue
- * -send messages from said queue to the client (or throw them away if too old)
+ * state of a connection with a client. it does not own a thread: the bytes are
+ * moved by a ClientThread (thread-per-client mode), by the two threads of a
+ * StreamTransport (BLOCKING and VIRTUAL mode) or by an EventLoop (NIO mode). it does a lot of stuff: -stamp messages received from the client and
+ * add them to the server's broadcast queue -receive messages from the server
+ * thread -keep them in a send queue until the transport can write them (or
+ * throw them away if too old) -send them over UDP instead, once the client has
+ * registered its UDP address with the MediaServer
+ *
  *
- *  
  */
-public class ClientConnection extends Thread {
+public class ClientConnection {
 
+    private static final long DROP_LOG_INTERVAL = 5000; //ms, drops are logged at most this often for each client
     private Server serv; //instance of server, needed to put messages in the server's broadcast queue
-    private Socket s; //connection to client 
-    private ObjectInputStream in; //object streams to/from client
-    private ObjectOutputStream out;
+    private InetAddress address; //client's ip and tcp port
+    private int port;
     private long chId; //unique id of this client, generated in the costructor
-    private ArrayList<Message> toSend = new ArrayList<Message>(); //queue of messages to be sent to the client
+    private FrameRing toSend; //queue of messages to be sent to the client. each frame in the queue holds a reference
+    private EventLoop loop; //in NIO mode, the EventLoop that must be woken up when there's something to send. null in thread-per-client mode
+    private volatile boolean closed = false;
+    private volatile Thread sender; //in BLOCKING and VIRTUAL mode, the thread waiting in takeToSend()
+    private volatile boolean waiting = false; //true when sender is (about to be) parked
+    private int seq = 0; //sequence numbers for the frames received over TCP from clients older than SEQ_VERSION, which don't carry one
+    private int version = 0; //version of the binary protocol spoken by the client, 0 for Java serialization
+    private Room room; //room the client is in. used only by the BroadcastThread
+    private int codec = Codecs.GZIP; //SpeechCodec the client encodes its sound with, negotiated by the BroadcastThread
+    private Resampler resampler; //converts the client's sound for the clients in the other SessionFormat. used only by the BroadcastThread
+    private MediaSession mediaSession; //UDP session offered to the client, null if none
+    private volatile DatagramChannel mediaChannel; //socket and address to send frames over UDP, null until the client registers
+    private volatile SocketAddress mediaAddress;
+    private volatile long lastDropLog; //ms, when drops were last logged
+    private long loggedFull = 0, loggedExpired = 0; //drops counted in the logs so far
+    private final AtomicLong framesIn = new AtomicLong(), framesOut = new AtomicLong(), bytesIn = new AtomicLong(), bytesOut = new AtomicLong(); //for the Metrics. updated by the threads moving TCP and UDP frames, rarely at the same time
 
     public InetAddress getInetAddress() { //returns this client's ip address
-        return s.getInetAddress();
+        return address;
     }
 
     public int getPort() { //returns this client's tcp port
-        return s.getPort();
+        return port;
     }
 
     public long getChId() { //return this client's unique id
         return chId;
     }
 
-    public ClientConnection(Server serv, Socket s) {
+    public ClientConnection(Server serv, InetAddress address, int port, int queueSize) {
         this.serv = serv;
-        this.s = s;
-        byte[] addr = s.getInetAddress().getAddress();
-        chId = (addr[0] << 48 | addr[1] << 32 | addr[2] << 24 | addr[3] << 16) + s.getPort(); //generate unique chId from client's IP and port
+        toSend = new FrameRing(queueSize);
+        lastDropLog = System.nanoTime() / 1000000L - DROP_LOG_INTERVAL; //the first drop is logged right away
+        this.address = address;
+        this.port = port;
+        byte[] addr = address.getAddress();
+        chId = (addr[0] << 48 | addr[1] << 32 | addr[2] << 24 | addr[3] << 16) + port; //generate unique chId from client's IP and port
     }
 
-    public void addToQueue(Message m) { //add a message to send to the client
-        try {
-            toSend.add(m);
-        } catch (Throwable t) {
-            //mutex error, ignore because the server must be as fast as possible
-        }
+    void setEventLoop(EventLoop loop) {
+        this.loop = loop;
     }
 
-    @Override
-    public void run() {
-        try {
-            out = new ObjectOutputStream(s.getOutputStream()); //create object streams to/from client
-            in = new ObjectInputStream(s.getInputStream());
-        } catch (IOException ex) { //connection error, close connection
+    public void addToQueue(SharedFrame f) { //add a message to send to the client. the caller gives its reference to the frame to this connection
+        SocketAddress udp = mediaAddress;
+        if (udp != null && !closed && f.getMessage().getData() instanceof SoundPacket && f.datagramLength() <= FrameCodec.MAX_DATAGRAM) { //send it right away, there's no queue on UDP
             try {
-                s.close();
-                Log.add("ERROR " + getInetAddress() + ":" + getPort() + " " + ex);
-            } catch (IOException ex1) {
+                mediaChannel.send(f.datagram(), udp);
+                sent(f.datagramLength());
+            } catch (IOException ex) { //lost, like any datagram can be
+            } finally {
+                f.release();
+            }
+            return;
+        }
+        if (!toSend.offer(f)) { //the client is too slow, its oldest message has been thrown away
+            Metrics.droppedFull.increment();
+            logDrops();
+        }
+        if (closed) { //close() may have already emptied the queue
+            toSend.clear();
+            return;
+        }
+        if (loop != null) {
+            loop.wakeup(this);
+        } else if (waiting) {
+            waiting = false;
+            LockSupport.unpark(sender);
+        }
+    }
+
+    /**
+     * returns the next message to be sent to the client, or null if there's
+     * nothing to send. messages that are too old are thrown away. the caller
+     * must release the frame after sending it
+     */
+    public SharedFrame nextToSend() {
+        long expired = toSend.getDroppedExpired();
+        SharedFrame toClient = toSend.poll();
+        if (toSend.getDroppedExpired() != expired) {
+            Metrics.droppedExpired.add(toSend.getDroppedExpired() - expired);
+            logDrops();
+        }
+        if (toClient != null) { //about to be written
+            sent(toClient.length(version));
+        }
+        return toClient;
+    }
+
+    private void sent(int bytes) {
+        framesOut.incrementAndGet();
+        bytesOut.addAndGet(bytes);
+        Metrics.framesOut.increment();
+        Metrics.bytesOut.add(bytes);
+    }
+
+    /**
+     * logs what was dropped since the last time, if that was long enough ago.
+     * a slow client drops a packet every few ms, and logging each one would
+     * flood the log
+     */
+    private void logDrops() {
+        long now = System.nanoTime() / 1000000L;
+        if (now - lastDropLog < DROP_LOG_INTERVAL) {
+            return;
+        }
+        synchronized (this) { //called by the BroadcastThread and by the thread sending to the client
+            if (now - lastDropLog < DROP_LOG_INTERVAL) {
+                return;
             }
-            stop();
+            long full = toSend.getDroppedFull(), expired = toSend.getDroppedExpired();
+            Log.add(Log.Level.WARN, chId, "dropped " + (full - loggedFull) + " packets to " + chId + " (queue full) and " + (expired - loggedExpired) + " old ones");
+            loggedFull = full;
+            loggedExpired = expired;
+            lastDropLog = now;
         }
+    }
+
+    /**
+     * like nextToSend(), but if there's nothing to send it waits until there
+     * is. returns null when the connection is closed. the caller must release
+     * the frame after sending it
+     */
+    public SharedFrame takeToSend() {
+        sender = Thread.currentThread();
         for (;;) {
-            try {
-                if (s.getInputStream().available() > 0) { //we got something from the client
-                    Message toBroadcast = (Message) in.readObject(); //read data from client
-                    if (toBroadcast.getChId() == -1) { //set its chId and timestamp and pass it to the server
-                        toBroadcast.setChId(chId);
-                        toBroadcast.setTimestamp(System.nanoTime() / 1000000L);
-                        serv.addToBroadcastQueue(toBroadcast);
-                    } else {
-                        continue; //invalid message
-                    }
-                }
-                try {
-                    if (!toSend.isEmpty()) {
-                        Message toClient = toSend.get(0); //we got something to send to the client
-                        if (!(toClient.getData() instanceof SoundPacket) || toClient.getTimestamp() + toClient.getTtl() < System.nanoTime() / 1000000L) { //is the message too old or of an unknown type?
-                            Log.add("dropping packet from " + toClient.getChId() + " to " + chId);
-                            continue;
-                        }
-                        out.writeObject(toClient); //send the message
-                        toSend.remove(toClient); //and remove it from the queue
-                    } else {
-                        Utils.sleep(10); //avoid busy wait
-                    }
-                } catch (Throwable t) {
-                    if (t instanceof IOException) {//connection closed or connection error
-                        throw (Exception) t;
-                    } else {//mutex error, try again
-                        System.out.println("cc fixmutex");
-                        continue;
-                    }
+            SharedFrame toClient = nextToSend();
+            if (toClient == null && !closed) {
+                waiting = true;
+                toClient = nextToSend(); //check again, something may have been added before addToQueue could see waiting
+                if (toClient == null && !closed) {
+                    LockSupport.parkNanos(this, 1000000000L); //addToQueue unparks us. the timeout is just a safety net
                 }
-            } catch (Exception ex) { //connection closed or connection error, kill thread
-                try {
-                    s.close();
-                } catch (IOException ex1) {
+                waiting = false;
+            }
+            if (closed) {
+                if (toClient != null) {
+                    toClient.release();
                 }
-                stop();
+                return null;
+            }
+            if (toClient != null) {
+                return toClient;
+            }
+        }
+    }
+
+    public int getQueueSize() { //messages waiting to be sent
+        return toSend.size();
+    }
+
+    public long getDroppedFull() { //messages thrown away because the client was too slow to receive them
+        return toSend.getDroppedFull();
+    }
+
+    public long getDroppedExpired() { //messages thrown away because they were older than their TTL
+        return toSend.getDroppedExpired();
+    }
+
+    public long getFramesIn() { //sound frames received
+        return framesIn.get();
+    }
+
+    public long getFramesOut() { //frames sent, by TCP or UDP
+        return framesOut.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() { //in the binary protocol, old clients get a bit more
+        return bytesOut.get();
+    }
+
+    public boolean hasToSend() {
+        return !toSend.isEmpty();
+    }
+
+    /**
+     * called by the transport when a message has been read from the client
+     */
+    public void received(Message toBroadcast) {
+        if (toBroadcast.getData() instanceof RoomControl) { //joining or leaving a room, the BroadcastThread will take care of it
+            if (version >= FrameCodec.ROOM_VERSION && toBroadcast.getChId() == -1) {
+                toBroadcast.setChId(chId);
+                serv.addToBroadcastQueue(this, toBroadcast);
+            }
+            return;
+        }
+        if (toBroadcast.getData() instanceof CodecList) { //offering its codecs, the BroadcastThread will pick one
+            if (version >= FrameCodec.CODEC_VERSION && toBroadcast.getChId() == -1) {
+                toBroadcast.setChId(chId);
+                serv.addToBroadcastQueue(this, toBroadcast);
             }
+            return;
+        }
+        if (version < FrameCodec.SEQ_VERSION) { //newer clients number their frames themselves
+            toBroadcast.setSeq(seq++);
+        }
+        broadcast(toBroadcast);
+    }
+
+    /**
+     * called by the MediaServer when a message has been received over UDP. it
+     * already has the sequence number given by the client
+     */
+    public void receivedDatagram(Message toBroadcast) {
+        broadcast(toBroadcast);
+    }
+
+    private void broadcast(Message toBroadcast) {
+        if (toBroadcast.getChId() != -1 || !(toBroadcast.getData() instanceof SoundPacket) || !Codecs.isSupported(((SoundPacket) toBroadcast.getData()).getCodec())) { //an invalid message or of an unknown type, ignore it
+            return;
+        }
+        int bytes = FrameCodec.encodedLength(toBroadcast);
+        if (bytes - 4 <= FrameCodec.MAX_FRAME) { //set its chId and timestamp and pass it to the server
+            framesIn.incrementAndGet();
+            bytesIn.addAndGet(bytes);
+            Metrics.framesIn.increment();
+            Metrics.bytesIn.add(bytes);
+            toBroadcast.setChId(chId);
+            toBroadcast.setTimestamp(System.nanoTime() / 1000000L);
+            toBroadcast.setTtl(serv.getTtl()); //what the client asked for doesn't matter, the server knows how long its queues can be
+            serv.addToBroadcastQueue(this, toBroadcast);
+        }
+    }
+
+    /**
+     * called by the transport after the binary protocol has been negotiated.
+     * returns the message offering UDP to the client, to be sent right away,
+     * or null if the client or the server can't use it
+     */
+    public Message negotiated(int version) {
+        this.version = version;
+        MediaServer media = serv.getMediaServer();
+        if (media == null || version < FrameCodec.MEDIA_VERSION || closed) {
+            return null;
         }
+        mediaSession = media.open(this);
+        if (closed) { //close() may have already run and missed the session
+            media.close(this, mediaSession);
+        }
+        return new Message(chId, System.nanoTime() / 1000000L, mediaSession);
+    }
 
+    public int getVersion() {
+        return version;
+    }
+
+    Room getRoom() {
+        return room;
+    }
+
+    void setRoom(Room room) {
+        this.room = room;
+    }
+
+    int getCodec() {
+        return codec;
+    }
+
+    void setCodec(int codec) {
+        this.codec = codec;
+    }
+
+    Resampler getResampler() {
+        return resampler;
+    }
+
+    void setResampler(Resampler resampler) {
+        this.resampler = resampler;
+    }
+
+    SocketAddress getMediaAddress() {
+        return mediaAddress;
+    }
+
+    void setMediaEndpoint(DatagramChannel ch, SocketAddress address) {
+        mediaChannel = ch;
+        mediaAddress = address;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * called by the transport when the connection is closed or broken. the
+     * BroadcastThread will remove this connection from the list of clients
+     */
+    public void close() {
+        closed = true;
+        toSend.clear();
+        Thread t = sender;
+        if (t != null) { //wake up the thread waiting for something to send, it will see that we're closed
+            LockSupport.unpark(t);
+        }
+        if (mediaSession != null) {
+            serv.getMediaServer().close(this, mediaSession);
+        }
     }
 }
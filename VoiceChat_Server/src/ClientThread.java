@@ -0,0 +1,54 @@
+
+/*
+ * To change this template, choose Tools | Templates and open the template in
+ * the editor.
+ */
+/**
+ * thread-per-client transport: this thread reads messages from one client and
+ * passes them to its ClientConnection, and sends the messages queued in the
+ * ClientConnection to the client, polling both directions. the streams are
+ * handled by a StreamTransport
+ *
+ *
+ */
+public class ClientThread extends Thread {
+
+    private ClientConnection cc; //state of this connection
+    private StreamTransport t; //streams to/from client
+
+    public ClientThread(ClientConnection cc, StreamTransport t) {
+        this.cc = cc;
+        this.t = t;
+    }
+
+    @Override
+    public void run() {
+        try {
+            t.open();
+        } catch (Exception ex) { //connection error, close connection
+            Log.add(Log.Level.ERROR, cc.getChId(), cc.getInetAddress() + ":" + cc.getPort() + " " + ex);
+            t.close();
+            return;
+        }
+        for (;;) {
+            try {
+                if (t.available()) { //we got something from the client
+                    t.receive(); //read data from client
+                }
+                SharedFrame toClient = cc.nextToSend();
+                if (toClient != null) { //we got something to send to the client
+                    try {
+                        t.send(toClient);
+                    } finally {
+                        toClient.release();
+                    }
+                } else {
+                    Utils.sleep(10); //avoid busy wait
+                }
+            } catch (Exception ex) { //connection closed or connection error, kill thread
+                t.close();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * codec negotiation. a client sends the ids of the SpeechCodecs it supports,
+ * the preferred ones first, and the server answers with the one it picked:
+ * the first of them that it supports too, or GZIP. the client then encodes
+ * what it records with that codec. clients decode all the codecs listed in
+ * Codecs, so they can hear everybody else whatever codec they picked
+ *
+ */
+public class CodecList {
+
+    private byte[] ids;
+
+    public CodecList(byte[] ids) {
+        this.ids = ids;
+    }
+
+    public byte[] getIds() {
+        return ids;
+    }
+}
@@ -0,0 +1,114 @@
+
+import java.util.ArrayList;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * the SpeechCodecs known to this program: the built-in ones, and the ones
+ * plugged in through ServiceLoader. also converts between 16 bit samples and
+ * the 8 bit samples of GZIP and DEFLATE
+ *
+ */
+public class Codecs {
+
+    public static final int GZIP = 0; //8 bit PCM compressed with GZIP, what old clients send and expect
+    public static final int PCMU = 1; //G.711 mu-law
+    public static final int PCMA = 2; //G.711 A-law
+    public static final int IMA_ADPCM = 3; //4 bits per sample
+    public static final int DEFLATE = 4; //8 bit PCM compressed with raw deflate, GZIP without its wrapper
+    public static final int L16 = 5; //uncompressed 16 bit PCM
+    private static final ArrayList<Class<? extends SpeechCodec>> classes = new ArrayList<Class<? extends SpeechCodec>>(); //in order of preference
+    private static final Class<?>[] byId = new Class<?>[128];
+
+    static {
+        try {
+            for (SpeechCodec c : ServiceLoader.load(SpeechCodec.class)) { //plugged in codecs are preferred to the built-in ones
+                register(c);
+            }
+        } catch (ServiceConfigurationError e) {
+            System.out.println("codec plugin error " + e);
+        }
+        register(new AdpcmCodec());
+        register(new MuLawCodec());
+        register(new ALawCodec());
+        register(new L16Codec());
+        register(new DeflatePcmCodec());
+        register(new GzipPcmCodec());
+    }
+
+    private static void register(SpeechCodec c) {
+        if (c.getId() >= 0 && c.getId() < byId.length && byId[c.getId()] == null) {
+            byId[c.getId()] = c.getClass();
+            classes.add(c.getClass());
+        }
+    }
+
+    /**
+     * returns a new instance of a codec, or null if it isn't supported
+     */
+    public static SpeechCodec create(int id) {
+        if (id < 0 || id >= byId.length || byId[id] == null) {
+            return null;
+        }
+        try {
+            return (SpeechCodec) byId[id].getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) { //no public constructor without arguments
+            return null;
+        }
+    }
+
+    public static boolean isSupported(int id) {
+        return id >= 0 && id < byId.length && byId[id] != null;
+    }
+
+    /**
+     * ids of the supported codecs, the preferred ones first
+     */
+    public static byte[] getSupported() {
+        byte[] ids = new byte[classes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            for (int id = 0; id < byId.length; id++) {
+                if (byId[id] == classes.get(i)) {
+                    ids[i] = (byte) id;
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * picks the first of the offered codecs that is supported here, GZIP if
+     * none is
+     */
+    public static int choose(byte[] offered) {
+        for (byte id : offered) {
+            if (isSupported(id)) {
+                return id;
+            }
+        }
+        return GZIP;
+    }
+
+    /**
+     * widens 8 bit samples to 16 bit
+     */
+    public static void toPcm16(byte[] in, int len, short[] out) {
+        for (int i = 0; i < len; i++) {
+            out[i] = (short) (in[i] << 8);
+        }
+    }
+
+    /**
+     * narrows 16 bit samples to 8 bit, rounding
+     */
+    public static void toPcm8(short[] in, int len, byte[] out) {
+        for (int i = 0; i < len; i++) {
+            out[i] = (byte) (Math.min(Short.MAX_VALUE, in[i] + 0x80) >> 8);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * a counter that many threads can add to without fighting over one cache
+ * line: it's split in stripes, each thread adds to the one picked by its id,
+ * and reading sums them. like java.util.concurrent.atomic.LongAdder, which
+ * needs Java 8
+ *
+ */
+public class Counter {
+
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1); //a power of 2, about twice the cores
+    private static final int PAD = 8; //longs per stripe, 64 bytes, so two stripes are never in the same cache line
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long n) {
+        cells.getAndAdd(stripe(), n);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    private static int stripe() { //the thread ids are consecutive, spread them
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return ((h >>> 16) & (STRIPES - 1)) * PAD;
+    }
+}
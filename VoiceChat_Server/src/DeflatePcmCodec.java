@@ -0,0 +1,55 @@
+
+import java.io.IOException;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * 8 bit PCM compressed with raw deflate: the same compression as GZIP, without
+ * the 18 bytes of header and trailer, and the CRC32 of the samples, that GZIP
+ * adds to every frame. lossless, for the clients that want their samples
+ * untouched
+ *
+ */
+public class DeflatePcmCodec implements SpeechCodec {
+
+    private byte[] pcm8 = new byte[0]; //samples narrowed to 8 bit
+
+    @Override
+    public int getId() {
+        return Codecs.DEFLATE;
+    }
+
+    @Override
+    public String getName() {
+        return "DEFLATE";
+    }
+
+    @Override
+    public int maxEncodedLength(int samples) {
+        return GzipCodec.maxRawDeflatedLength(samples);
+    }
+
+    @Override
+    public int encode(short[] pcm, int samples, byte[] out) {
+        ensureCapacity(samples);
+        Codecs.toPcm8(pcm, samples, pcm8);
+        return GzipCodec.forThread().deflateRaw(pcm8, samples, out);
+    }
+
+    @Override
+    public int decode(byte[] in, int len, short[] pcm) throws IOException {
+        ensureCapacity(pcm.length);
+        int n = GzipCodec.forThread().inflateRaw(in, len, pcm8, pcm.length);
+        Codecs.toPcm16(pcm8, n, pcm);
+        return n;
+    }
+
+    private void ensureCapacity(int samples) {
+        if (pcm8.length < samples) {
+            pcm8 = new byte[samples];
+        }
+    }
+}
@@ -0,0 +1,386 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * To change this template, choose Tools | Templates and open the template in
+ * the editor.
+ */
+/**
+ * NIO mode transport: one of these threads serves many clients with a
+ * Selector. it reads messages from its clients (binary frames, or serialized
+ * objects from old clients) and passes them to their
+ * ClientConnection, and writes the messages queued by the BroadcastThread in
+ * each ClientConnection. the server creates one EventLoop per core and assigns
+ * new connections to them round robin
+ *
+ *
+ */
+public class EventLoop extends Thread {
+
+    private static final int WRITE_BATCH = 16384; //serialize messages until we have this many bytes, then write them with a single system call
+    private static final int GATHER_MAX = 32; //max frames written with a single gathering write
+    private static final int MAX_MESSAGE = 1 << 20; //a client sending a bigger message is broken or malicious, disconnect it
+    private Selector selector;
+    private ConcurrentLinkedQueue<Connection> toRegister = new ConcurrentLinkedQueue<Connection>(); //connections accepted by the server, waiting to be registered with the selector
+    private Set<ClientConnection> toFlush = Collections.newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>()); //connections that have something new to send
+    private AtomicBoolean wakeupPending = new AtomicBoolean(false); //avoids waking up the selector once per message when it's already awake
+    private HashMap<ClientConnection, Connection> connections = new HashMap<ClientConnection, Connection>(); //only used by this thread
+
+    /**
+     * socket and buffers of a client served by this loop
+     */
+    private static class Connection {
+
+        private SocketChannel ch;
+        private SelectionKey key;
+        private ClientConnection cc;
+        private boolean negotiated = false; //true when we know which protocol the client speaks
+        private boolean binary; //true if the client speaks the binary protocol, false for Java serialization
+        private ByteBuffer in = ByteBuffer.allocate(4096); //bytes received from the client, not yet decoded
+        private ByteBuffer pending; //encoded bytes that the socket didn't accept yet
+        //binary protocol
+        private SharedFrame[] frames; //frames being written, from first to count-1. we hold a reference to each of them
+        private ByteBuffer[] views; //our views of those frames, written with a single gathering write
+        private int first, count;
+        //Java serialization
+        private ObjectStreamScanner scanner;
+        private Feed feed;
+        private ObjectInputStream ois; //created when the client's stream header arrives
+        private Bytes outBytes;
+        private ObjectOutputStream oos;
+        private int written = 0; //messages written to oos
+    }
+
+    /**
+     * InputStream giving the ObjectInputStream exactly the bytes of the objects
+     * found by the ObjectStreamScanner, so it never blocks
+     */
+    private static class Feed extends InputStream {
+
+        private ByteBuffer b;
+        private int end;
+
+        private void set(ByteBuffer b, int end) {
+            this.b = b;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            if (b.position() >= end) {
+                return -1;
+            }
+            return b.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            int n = Math.min(len, end - b.position());
+            if (n <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            b.get(buf, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return end - b.position();
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream whose buffer can be written to a channel without
+     * copying it
+     */
+    private static class Bytes extends ByteArrayOutputStream {
+
+        private ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    public EventLoop(int n) throws IOException {
+        super("EventLoop-" + n);
+        selector = Selector.open();
+    }
+
+    /**
+     * hands a new connection to this loop. called by the server's accept loop
+     */
+    public void register(SocketChannel ch, ClientConnection cc) {
+        Connection c = new Connection();
+        c.ch = ch;
+        c.cc = cc;
+        cc.setEventLoop(this);
+        toRegister.add(c);
+        selector.wakeup();
+    }
+
+    /**
+     * called by the BroadcastThread when a client has something new to send
+     */
+    public void wakeup(ClientConnection cc) {
+        if (toFlush.add(cc) && !wakeupPending.getAndSet(true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+                for (;;) { //register new connections
+                    Connection c = toRegister.poll();
+                    if (c == null) {
+                        break;
+                    }
+                    open(c);
+                }
+                for (Iterator<ClientConnection> i = toFlush.iterator(); i.hasNext();) { //send new messages
+                    ClientConnection cc = i.next();
+                    i.remove();
+                    Connection c = connections.get(cc);
+                    if (c != null) {
+                        flush(c);
+                    }
+                }
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) { //serve ready sockets
+                    SelectionKey k = i.next();
+                    i.remove();
+                    Connection c = (Connection) k.attachment();
+                    if (k.isValid() && k.isReadable()) {
+                        read(c);
+                    }
+                    if (k.isValid() && k.isWritable()) {
+                        flush(c);
+                    }
+                }
+            } catch (IOException ex) { //selector error, can't do anything about it
+                Log.error("EventLoop error " + ex);
+                Utils.sleep(10);
+            }
+        }
+    }
+
+    private void open(Connection c) {
+        try {
+            c.ch.configureBlocking(false);
+            c.ch.socket().setTcpNoDelay(true);
+            c.key = c.ch.register(selector, SelectionKey.OP_READ, c);
+            c.pending = ByteBuffer.wrap(FrameCodec.OBJECT_STREAM_HEADER); //old clients wait for this before sending anything, new ones skip it
+            connections.put(c.cc, c);
+            flush(c);
+        } catch (IOException ex) {
+            Log.add(Log.Level.ERROR, c.cc.getChId(), c.cc.getInetAddress() + ":" + c.cc.getPort() + " " + ex);
+            close(c);
+        }
+    }
+
+    private void read(Connection c) {
+        try {
+            if (c.ch.read(c.in) < 0) { //connection closed by the client
+                close(c);
+                return;
+            }
+            c.in.flip();
+            if (!c.negotiated) {
+                negotiate(c);
+            }
+            if (c.negotiated && c.binary) {
+                Message m;
+                while ((m = FrameCodec.decode(c.in, c.cc.getVersion())) != null) { //decode all the complete frames we have
+                    c.cc.received(m);
+                }
+            } else if (c.negotiated) {
+                for (;;) { //decode all the complete objects we have
+                    int end = c.scanner.scan(c.in);
+                    if (end < 0) {
+                        break;
+                    }
+                    c.feed.set(c.in, end);
+                    if (c.ois == null) {
+                        c.ois = new ObjectInputStream(c.feed); //reads the stream header
+                    } else {
+                        Object o = c.ois.readObject();
+                        if (o instanceof Message) {
+                            c.cc.received((Message) o);
+                        }
+                    }
+                    c.in.position(end);
+                }
+            }
+            c.in.compact();
+            if (!c.in.hasRemaining()) { //a message bigger than our buffer is coming
+                if (c.in.capacity() >= MAX_MESSAGE) {
+                    throw new IOException("message too big");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(c.in.capacity() * 2);
+                c.in.flip();
+                bigger.put(c.in);
+                c.in = bigger;
+            }
+        } catch (Exception ex) { //connection error or invalid data, close connection
+            close(c);
+        }
+    }
+
+    private void flush(Connection c) {
+        try {
+            for (;;) {
+                if (c.pending != null) {
+                    c.ch.write(c.pending);
+                    if (c.pending.hasRemaining()) { //socket buffer is full, wait until it's writable again
+                        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    c.pending = null;
+                }
+                if (c.negotiated && c.binary) {
+                    if (!writeFrames(c)) {
+                        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else if (c.negotiated) {
+                    c.pending = serializeObjects(c);
+                }
+                if (c.pending == null) { //nothing else to send
+                    c.key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        } catch (Exception ex) { //connection closed or connection error
+            close(c);
+        }
+    }
+
+    /**
+     * looks at the first bytes sent by the client to decide which protocol it
+     * speaks. a new client sends a hello, an old one its object stream header
+     */
+    private void negotiate(Connection c) throws IOException {
+        if (c.in.remaining() < 4 || (c.in.getInt(c.in.position()) == FrameCodec.MAGIC && c.in.remaining() < FrameCodec.HELLO_LENGTH)) {
+            return;
+        }
+        if (c.pending != null) { //the client can't speak before receiving our header
+            throw new IOException("protocol error");
+        }
+        int version = FrameCodec.readHello(c.in);
+        c.negotiated = true;
+        if (version == 0) {
+            throw new IOException("invalid protocol version");
+        } else if (version > 0) {
+            c.binary = true;
+            c.frames = new SharedFrame[GATHER_MAX];
+            c.views = new ByteBuffer[GATHER_MAX];
+            Message offer = c.cc.negotiated(Math.min(version, FrameCodec.VERSION));
+            c.pending = ByteBuffer.allocate(FrameCodec.HELLO_LENGTH + (offer == null ? 0 : FrameCodec.encodedLength(offer) + 4));
+            FrameCodec.writeHelloReply(c.pending, version);
+            if (offer != null) { //tell the client it can send its sound over UDP
+                FrameCodec.encode(offer, c.pending, false, c.cc.getVersion());
+            }
+            c.pending.flip();
+        } else { //old client, the header will be read by the ObjectStreamScanner and the ObjectInputStream
+            c.scanner = new ObjectStreamScanner();
+            c.feed = new Feed();
+            c.outBytes = new Bytes();
+            c.oos = new ObjectOutputStream(c.outBytes);
+            c.oos.flush();
+            c.outBytes.reset(); //we already sent the header
+        }
+        flush(c);
+    }
+
+    /**
+     * writes the queued frames, already encoded by the BroadcastThread, with
+     * gathering writes. returns false if the socket can't take any more bytes
+     * now, true if there's nothing left to send
+     */
+    private boolean writeFrames(Connection c) throws IOException {
+        for (;;) {
+            if (c.count == 0) { //take the next frames from the queue
+                int bytes = 0;
+                SharedFrame f;
+                while (c.count < GATHER_MAX && bytes < WRITE_BATCH && (f = c.cc.nextToSend()) != null) {
+                    c.frames[c.count] = f;
+                    c.views[c.count] = f.duplicate(c.cc.getVersion());
+                    bytes += f.length(c.cc.getVersion());
+                    c.count++;
+                }
+                if (c.count == 0) {
+                    return true;
+                }
+            }
+            c.ch.write(c.views, c.first, c.count - c.first);
+            while (c.first < c.count && !c.views[c.first].hasRemaining()) { //these have been sent
+                c.frames[c.first].release();
+                c.frames[c.first] = null;
+                c.views[c.first] = null;
+                c.first++;
+            }
+            if (c.first < c.count) {
+                return false;
+            }
+            c.first = 0;
+            c.count = 0;
+        }
+    }
+
+    /**
+     * serializes queued messages for an old client. returns the bytes to
+     * write, or null if there's nothing to send
+     */
+    private ByteBuffer serializeObjects(Connection c) throws IOException {
+        c.outBytes.reset();
+        SharedFrame f;
+        while (c.outBytes.size() < WRITE_BATCH && (f = c.cc.nextToSend()) != null) {
+            try {
+                if (++c.written % FrameCodec.OBJECT_STREAM_RESET_INTERVAL == 0) { //forget the objects written so far, or the stream keeps them in memory forever (done before writing, so a reset is never the last thing in the stream)
+                    c.oos.reset();
+                }
+                long start = System.nanoTime();
+                c.oos.writeObject(f.getMessage());
+                c.oos.flush(); //move the bytes from the stream's internal buffer to outBytes
+                Metrics.serialize.record(System.nanoTime() - start);
+            } finally {
+                f.release();
+            }
+        }
+        return c.outBytes.size() == 0 ? null : c.outBytes.wrap();
+    }
+
+    private void close(Connection c) {
+        c.cc.close();
+        for (int i = c.first; i < c.count; i++) { //frames we were writing
+            c.frames[i].release();
+            c.frames[i] = null;
+        }
+        c.first = 0;
+        c.count = 0;
+        connections.remove(c.cc);
+        if (c.key != null) {
+            c.key.cancel();
+        }
+        try {
+            c.ch.close();
+        } catch (IOException ex) {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * fixed size queue of frames to be sent to one client. one thread adds (the
+ * BroadcastThread), one thread takes (the client's transport). when a slow
+ * client lets the ring fill up, the oldest frame is thrown away to make room
+ * for the new one; frames older than their TTL are thrown away when they reach
+ * the head. every operation is O(1) and lock-free: the producer and the
+ * consumer both remove frames by advancing head with a CAS, so a frame is
+ * always released by exactly one of them
+ *
+ */
+public class FrameRing {
+
+    private final AtomicReferenceArray<SharedFrame> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); //next frame to take, advanced by both threads
+    private volatile long tail = 0; //next free slot, only advanced by the producer
+    private final AtomicLong droppedFull = new AtomicLong(); //frames thrown away because the client was too slow
+    private final AtomicLong droppedExpired = new AtomicLong(); //frames thrown away because they were too old
+
+    /**
+     * capacity is rounded up to a power of 2
+     */
+    public FrameRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<SharedFrame>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * adds a frame, taking ownership of the caller's reference. if the ring is
+     * full, the oldest frame is released. returns false if a frame was dropped.
+     * producer only
+     */
+    public boolean offer(SharedFrame f) {
+        boolean dropped = false;
+        long t = tail;
+        for (;;) {
+            long h = head.get();
+            if (t - h <= mask) {
+                break;
+            }
+            SharedFrame oldest = slots.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) { //we removed it, the consumer can't get it anymore
+                oldest.release();
+                droppedFull.incrementAndGet();
+                dropped = true;
+            }
+        }
+        slots.lazySet((int) t & mask, f);
+        tail = t + 1; //volatile write, publishes the slot
+        return !dropped;
+    }
+
+    /**
+     * takes the oldest frame that isn't expired, or returns null if there's
+     * none. the caller must release it. consumer only
+     */
+    public SharedFrame poll() {
+        for (;;) {
+            long h = head.get();
+            if (h == tail) {
+                return null;
+            }
+            SharedFrame f = slots.get((int) h & mask);
+            if (!head.compareAndSet(h, h + 1)) { //the producer dropped it to make room, try the next one
+                continue;
+            }
+            Message m = f.getMessage();
+            if (m.getTimestamp() + m.getTtl() < System.nanoTime() / 1000000L) { //too old, throw it away and look at the next one
+                f.release();
+                droppedExpired.incrementAndGet();
+                continue;
+            }
+            return f;
+        }
+    }
+
+    /**
+     * releases all queued frames. called when the connection is closed
+     */
+    public void clear() {
+        for (;;) {
+            long h = head.get();
+            if (h == tail) {
+                return;
+            }
+            SharedFrame f = slots.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+                f.release();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getDroppedFull() {
+        return droppedFull.get();
+    }
+
+    public long getDroppedExpired() {
+        return droppedExpired.get();
+    }
+}
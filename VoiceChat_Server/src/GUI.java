@@ -103,18 +103,32 @@ public class GUI extends javax.swing.JFrame {
                 }
             }
         }.start();
-        new Thread() { //start logger
+        new javax.swing.Timer(100, new java.awt.event.ActionListener() { //show the new log records, on the event thread
+            private long logSeq = 0; //next record to show
+            private java.util.ArrayList<Log.Record> records = new java.util.ArrayList<Log.Record>();
+
             @Override
-            public void run() {
-                for (;;) {
-                    Utils.sleep(100);
-                    if (!Log.get().equals(log.getText())) {
-                        log.setText(Log.get());
-                        log.getCaret().setDot(Log.get().length());
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                records.clear();
+                logSeq = Log.read(logSeq, records);
+                if (records.isEmpty()) {
+                    return;
+                }
+                StringBuilder sb = new StringBuilder();
+                for (Log.Record r : records) {
+                    sb.append(r).append('\n');
+                }
+                log.append(sb.toString()); //only what's new
+                try {
+                    int excess = log.getLineCount() - Log.CAPACITY; //keep as many lines as the log does
+                    if (excess > 0) {
+                        log.replaceRange("", 0, log.getLineStartOffset(excess));
                     }
+                } catch (javax.swing.text.BadLocationException ex) {
                 }
+                log.setCaretPosition(log.getDocument().getLength());
             }
-        }.start();
+        }).start();
         jTextField1.setEnabled(false);
         jButton1.setText("Stop");
     }//GEN-LAST:event_jButton1ActionPerformed
@@ -0,0 +1,54 @@
+
+import java.io.IOException;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * the original format: 8 bit PCM compressed with GZIP. it barely compresses
+ * short frames of audio and costs a lot of CPU, but it's the only one old
+ * clients understand
+ *
+ */
+public class GzipPcmCodec implements SpeechCodec {
+
+    private byte[] pcm8 = new byte[0]; //samples narrowed to 8 bit
+
+    @Override
+    public int getId() {
+        return Codecs.GZIP;
+    }
+
+    @Override
+    public String getName() {
+        return "GZIP";
+    }
+
+    @Override
+    public int maxEncodedLength(int samples) {
+        return GzipCodec.maxDeflatedLength(samples);
+    }
+
+    @Override
+    public int encode(short[] pcm, int samples, byte[] out) {
+        ensureCapacity(samples);
+        Codecs.toPcm8(pcm, samples, pcm8);
+        return GzipCodec.forThread().deflate(pcm8, samples, out);
+    }
+
+    @Override
+    public int decode(byte[] in, int len, short[] pcm) throws IOException {
+        ensureCapacity(pcm.length);
+        int n = GzipCodec.forThread().inflate(in, len, pcm8, pcm.length);
+        Codecs.toPcm16(pcm8, n, pcm);
+        return n;
+    }
+
+    private void ensureCapacity(int samples) {
+        if (pcm8.length < samples) {
+            pcm8 = new byte[samples];
+        }
+    }
+}
@@ -0,0 +1,89 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * distribution of values (durations in ns), like HdrHistogram: each power of 2
+ * is split in 2^SUB_BITS buckets, so the buckets are about 3% wide at any
+ * magnitude and a fixed array covers every long. recording is one atomic
+ * increment and doesn't allocate; any thread can record, and read at the same
+ * time
+ *
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5; //32 buckets per power of 2
+    private static final int SUB_MASK = (1 << SUB_BITS) - 1;
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) << SUB_BITS);
+    private final Counter count = new Counter(), sum = new Counter();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) { //rarely more than once
+            m = max.get();
+        }
+    }
+
+    private static int index(long value) { //values below 2^(SUB_BITS+1) have a bucket each
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        if (shift <= 0) {
+            return (int) value;
+        }
+        return (shift + 1) << SUB_BITS | (int) ((value >>> shift) & SUB_MASK);
+    }
+
+    private static long highest(int index) { //highest value in a bucket
+        int shift = (index >> SUB_BITS) - 1;
+        if (shift <= 0) {
+            return index;
+        }
+        return (((long) (index & SUB_MASK) | (1L << SUB_BITS)) << shift) + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : getSum() / (double) n;
+    }
+
+    /**
+     * the value below which there are this fraction (0-1) of the values, as
+     * the top of its bucket. 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(highest(i), getMax());
+            }
+        }
+        return 0;
+    }
+}
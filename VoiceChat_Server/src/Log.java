@@ -1,14 +1,195 @@
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
 /*
  * To change this template, choose Tools | Templates
  * and open the template in the editor.
  */
 
 /**
- * server's log. instances of Server add entries to this log
- *  
+ * server's log. any thread adds Records to it; only the last CAPACITY are
+ * kept, in a lock-free ring: adding claims a sequence number with one atomic
+ * increment and stores the record in its slot, overwriting the oldest one, so
+ * logging never blocks and never grows. readers (the GUI, the appender) keep
+ * the sequence number they got to and read only what was added after it.
+ * the appender is a thread that formats the records and prints them, if an
+ * output was set, so the threads that log don't pay for formatting and I/O
+ *
  */
 public class Log {
-    private static String log="";
-    public static void add(String s){log+=s+"\n";}
-    public static String get(){return log;}
+
+    public enum Level {
+
+        INFO, WARN, ERROR
+    }
+
+    /**
+     * an entry of the log
+     */
+    public static class Record {
+
+        private final long seq;
+        private final long time; //ms since the epoch
+        private final Level level;
+        private final long chId; //client it's about, -1 if none
+        private final String text;
+
+        private Record(long seq, long time, Level level, long chId, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.level = level;
+            this.chId = chId;
+            this.text = text;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public long getChId() {
+            return chId;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public String toString() { //time, level if not INFO, text
+            return String.format("%tT %s%s", time, level == Level.INFO ? "" : level + " ", text);
+        }
+    }
+    public static final int CAPACITY = 4096; //records kept, a power of 2
+    private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<Record>(CAPACITY);
+    private static final AtomicLong next = new AtomicLong(); //sequence number of the next record
+    private static volatile Appender appender; //null until an output is set
+
+    /**
+     * prints the records to an output, on its own thread
+     */
+    private static class Appender extends Thread {
+
+        private static final AtomicIntegerFieldUpdater<Appender> WAITING = AtomicIntegerFieldUpdater.newUpdater(Appender.class, "waiting"); //created here, where waiting is accessible
+        private volatile int waiting = 0; //1 when it's (about to be) parked
+        private volatile PrintStream out; //null when not printing
+        private long read; //sequence number of the next record to print
+
+        private Appender(PrintStream out, long from) {
+            super("Log appender");
+            this.out = out;
+            read = from;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ArrayList<Record> batch = new ArrayList<Record>();
+            for (;;) {
+                batch.clear();
+                read = read(read, batch);
+                if (batch.isEmpty()) {
+                    waiting = 1;
+                    if (next.get() == read) { //check again, a record may have been added before it could see waiting
+                        LockSupport.park(this);
+                    }
+                    waiting = 0;
+                    continue;
+                }
+                PrintStream o = out;
+                if (o != null) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        o.println(batch.get(i));
+                    }
+                    o.flush();
+                }
+            }
+        }
+    }
+
+    public static void add(String s) {
+        add(Level.INFO, -1, s);
+    }
+
+    public static void warn(String s) {
+        add(Level.WARN, -1, s);
+    }
+
+    public static void error(String s) {
+        add(Level.ERROR, -1, s);
+    }
+
+    /**
+     * adds a record about a client. can be called by any thread
+     */
+    public static void add(Level level, long chId, String s) {
+        long seq = next.getAndIncrement();
+        ring.lazySet((int) (seq & (CAPACITY - 1)), new Record(seq, System.currentTimeMillis(), level, chId, s));
+        Appender a = appender;
+        if (a != null && a.waiting == 1 && Appender.WAITING.compareAndSet(a, 1, 0)) { //only the first one to see it waiting pays for the unpark
+            LockSupport.unpark(a);
+        }
+    }
+
+    /**
+     * prints the records added from now on to out, from the appender's
+     * thread. null stops printing
+     */
+    public static synchronized void setOutput(PrintStream out) {
+        if (appender == null && out != null) {
+            Appender a = new Appender(out, next.get());
+            a.start();
+            appender = a;
+        } else if (appender != null) {
+            appender.out = out;
+        }
+    }
+
+    /**
+     * adds to out the records from sequence number from on, in order, and
+     * returns the sequence number to read from next time. the records that
+     * were already overwritten are skipped
+     */
+    public static long read(long from, List<Record> out) {
+        long end = next.get();
+        if (end - from > CAPACITY) { //we're too far behind, the oldest ones are gone
+            from = end - CAPACITY;
+        }
+        for (long seq = from; seq < end; seq++) {
+            Record r = ring.get((int) (seq & (CAPACITY - 1)));
+            if (r == null || r.seq < seq) { //claimed but not stored yet, wait for it
+                return seq;
+            }
+            if (r.seq == seq) { //else it was overwritten while we read
+                out.add(r);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * the records still in the log, one per line
+     */
+    public static String get() {
+        ArrayList<Record> records = new ArrayList<Record>();
+        read(0, records);
+        StringBuilder sb = new StringBuilder();
+        for (Record r : records) {
+            sb.append(r).append('\n');
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,174 @@
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * UDP transport for sound frames. on TCP a lost segment stalls every frame
+ * behind it until it's retransmitted; on UDP it only loses itself.
+ * the TCP connection is still used to set up the session: clients that speak
+ * version 2 of the binary protocol get a MediaSession with a random token,
+ * and send it back in a datagram from the address they'll use. from then on
+ * their frames go both ways over UDP. clients that never register (old
+ * clients, firewalls) keep using TCP.
+ * the port can be served by several sockets bound with SO_REUSEPORT, each with
+ * its own thread, so the kernel spreads the datagrams (and the receive
+ * syscalls) over the cores
+ *
+ */
+public class MediaServer {
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort(); //null before Java 9
+    private DatagramChannel[] channels;
+    private int port;
+    private ConcurrentHashMap<Long, ClientConnection> sessions = new ConcurrentHashMap<Long, ClientConnection>(); //token -> connection, for registrations
+    private ConcurrentHashMap<SocketAddress, ClientConnection> endpoints = new ConcurrentHashMap<SocketAddress, ClientConnection>(); //registered UDP address -> connection, for sound frames
+    private SecureRandom random = new SecureRandom();
+
+    /**
+     * binds the UDP port with the specified number of sockets (if the OS
+     * supports SO_REUSEPORT, otherwise just one) and starts their threads
+     */
+    public MediaServer(int port, int sockets) throws IOException {
+        channels = new DatagramChannel[Math.max(1, sockets)];
+        for (int i = 0; i < channels.length; i++) {
+            DatagramChannel ch = DatagramChannel.open();
+            if (channels.length > 1 && !reusePort(ch)) { //not available here, one socket will do
+                Log.warn("SO_REUSEPORT not supported, using one UDP socket");
+                channels = new DatagramChannel[]{ch};
+            }
+            ch.bind(new InetSocketAddress(port));
+            port = ch.socket().getLocalPort(); //if port was 0, the others must bind to the same port as the first one
+            channels[i] = ch;
+        }
+        this.port = port;
+        for (int i = 0; i < channels.length; i++) {
+            new Receiver(channels[i], i).start();
+        }
+        Log.add("UDP media on port " + port + ", " + channels.length + " sockets");
+    }
+
+    /**
+     * StandardSocketOptions.SO_REUSEPORT, which was added in Java 9, so it's
+     * looked up by reflection
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookupReusePort() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Exception ex) { //older JVM
+            return null;
+        }
+    }
+
+    /**
+     * sets SO_REUSEPORT on ch, false if the JVM or the OS doesn't support it
+     */
+    private static boolean reusePort(DatagramChannel ch) throws IOException {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        try {
+            ch.setOption(SO_REUSEPORT, true);
+            return true;
+        } catch (UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * creates a session for a client, to be sent to it over TCP
+     */
+    public MediaSession open(ClientConnection cc) {
+        long token;
+        do {
+            token = random.nextLong();
+        } while (sessions.putIfAbsent(token, cc) != null);
+        return new MediaSession(token, port);
+    }
+
+    /**
+     * forgets a client's session and address, when its connection is closed
+     */
+    public void close(ClientConnection cc, MediaSession session) {
+        sessions.remove(session.getToken());
+        SocketAddress a = cc.getMediaAddress();
+        if (a != null) {
+            endpoints.remove(a, cc);
+        }
+    }
+
+    private void received(DatagramChannel ch, SocketAddress from, ByteBuffer b) throws IOException {
+        Message m = FrameCodec.decodeDatagram(b);
+        if (m.getData() instanceof MediaSession) { //a client registering its address, or refreshing it
+            ClientConnection cc = sessions.get(((MediaSession) m.getData()).getToken());
+            if (cc == null || cc.isClosed()) {
+                return;
+            }
+            SocketAddress old = cc.getMediaAddress();
+            if (!from.equals(old)) {
+                if (old != null) {
+                    endpoints.remove(old, cc);
+                }
+                endpoints.put(from, cc);
+                cc.setMediaEndpoint(ch, from);
+                Log.add("client " + cc.getChId() + " sends sound over UDP from " + from);
+            }
+            b.clear();
+            FrameCodec.encodeDatagram(m, b); //echo it, so the client knows it can use UDP
+            b.flip();
+            ch.send(b, from);
+        } else {
+            ClientConnection cc = endpoints.get(from);
+            if (cc != null) {
+                cc.receivedDatagram(m);
+            } //otherwise it's from someone who didn't register, ignore it
+        }
+    }
+
+    /**
+     * receives the datagrams arriving on one of the sockets
+     */
+    private class Receiver extends Thread {
+
+        private DatagramChannel ch;
+
+        public Receiver(DatagramChannel ch, int id) {
+            super("MediaReceiver-" + id);
+            this.ch = ch;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer b = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            for (;;) {
+                try {
+                    b.clear();
+                    SocketAddress from = ch.receive(b);
+                    b.flip();
+                    received(ch, from, b);
+                } catch (ClosedChannelException ex) {
+                    return;
+                } catch (IOException ex) { //invalid datagram, or an error sending the echo. datagrams can be lost anyway
+                } catch (RuntimeException ex) { //invalid datagram
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * UDP session offered by the server to a client over TCP. the client sends it
+ * back in a datagram to tell the server its UDP address, and the server echoes
+ * it to confirm. the token is random, so nobody else can take the client's
+ * place
+ *
+ */
+public class MediaSession {
+
+    private long token; //random, known only by the server and the client it was sent to
+    private int port; //server's UDP port
+
+    public MediaSession(long token, int port) {
+        this.token = token;
+        this.port = port;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
@@ -1,4 +1,6 @@
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /*
@@ -11,10 +13,13 @@ import java.io.Serializable;
  *  
  */
 public class Message implements Serializable{
+    private static final long serialVersionUID = 7019530729929891985L; //the value computed for the first version, so old clients can still talk to us after methods are added
     private long chId; //-1 means from client to server, otherwise chId generated by the server
     private long timestamp, //-1 means from client to server, otherwise timeStamp of the moment when the server receives the message
             ttl=2000; //2 seconds TTL
     private final Object data; //can carry any type of object. in this program, i used a sound packet, but it could be a string, a chunk of video, ...
+    private transient int seq; //sequence number of a sound frame, used over UDP to detect lost and reordered packets. transient, so old clients can still read the other fields
+    private transient int level = -1; //level of the voice in a sound frame, 0-127, measured by the client that recorded it. -1 if unknown
 
     
     public Message(long chId, long timestamp, Object data) {
@@ -49,5 +54,26 @@ public class Message implements Serializable{
     public void setChId(long chId) {
         this.chId = chId;
     }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        level = -1; //old clients don't measure it
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
     
 }
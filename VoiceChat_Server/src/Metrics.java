@@ -0,0 +1,207 @@
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.List;
+import javax.management.ObjectName;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * counters and histograms of the server's hot paths, so it doesn't run
+ * blind: frames and bytes in and out, drops, the time from reading a frame to
+ * having queued it for everybody (dispatch), encoding frames for the wire
+ * (serialize) and running the SpeechCodecs (compress). the server-wide ones
+ * are static, updated by whatever thread does the work; the ClientConnections
+ * count their own frames and bytes. they're shown through JMX and, if a port
+ * is configured, as text (Prometheus format) at http://127.0.0.1:port/metrics
+ *
+ */
+public class Metrics implements MetricsMBean {
+
+    public static final Counter framesIn = new Counter(), framesOut = new Counter();
+    public static final Counter bytesIn = new Counter(), bytesOut = new Counter();
+    public static final Counter droppedFull = new Counter(), droppedExpired = new Counter();
+    public static final Histogram dispatch = new Histogram(), serialize = new Histogram(), compress = new Histogram(); //ns
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final Server server;
+
+    private Metrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * registers the MBean of a server and, if httpPort > 0, serves the report
+     * on that port of the loopback interface
+     */
+    public static void start(Server server, int port, int httpPort) {
+        final Metrics m = new Metrics(server);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(m, new ObjectName("VoiceChat:type=Server,port=" + port));
+        } catch (Exception ex) { //already registered (two servers on the same port?), or no JMX
+            Log.warn("metrics not available through JMX: " + ex);
+        }
+        if (httpPort <= 0) {
+            return;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            http.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange ex) throws IOException {
+                    byte[] body = m.getReport().getBytes(UTF8);
+                    ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    ex.sendResponseHeaders(200, body.length);
+                    OutputStream out = ex.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            });
+            http.start(); //on its own thread, the server's ones never wait for it
+            Log.add("metrics on http://127.0.0.1:" + httpPort + "/metrics");
+        } catch (IOException ex) {
+            Log.warn("metrics not available over HTTP: " + ex);
+        }
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDroppedFull() {
+        return droppedFull.sum();
+    }
+
+    @Override
+    public long getDroppedExpired() {
+        return droppedExpired.sum();
+    }
+
+    @Override
+    public int getConnections() {
+        return server.getClients().size();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (ClientConnection cc : server.getClients()) {
+            max = Math.max(max, cc.getQueueSize());
+        }
+        return max;
+    }
+
+    @Override
+    public double getDispatchP50Micros() {
+        return dispatch.getPercentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getDispatchP99Micros() {
+        return dispatch.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getDispatchMaxMicros() {
+        return dispatch.getMax() / 1000.0;
+    }
+
+    @Override
+    public double getSerializeP50Micros() {
+        return serialize.getPercentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getSerializeP99Micros() {
+        return serialize.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getCompressP50Micros() {
+        return compress.getPercentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getCompressP99Micros() {
+        return compress.getPercentile(0.99) / 1000.0;
+    }
+
+    /**
+     * everything, in the Prometheus text format
+     */
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "voicechat_frames_in_total", "sound frames received from the clients", framesIn);
+        counter(sb, "voicechat_frames_out_total", "frames sent to the clients", framesOut);
+        counter(sb, "voicechat_bytes_in_total", "bytes of the sound frames received", bytesIn);
+        counter(sb, "voicechat_bytes_out_total", "bytes of the frames sent", bytesOut);
+        counter(sb, "voicechat_dropped_full_total", "frames thrown away because a client's queue was full", droppedFull);
+        counter(sb, "voicechat_dropped_expired_total", "frames thrown away because they were older than their TTL", droppedExpired);
+        summary(sb, "voicechat_dispatch_seconds", "from reading a frame to having queued it for its room", dispatch);
+        summary(sb, "voicechat_serialize_seconds", "encoding a frame for the wire", serialize);
+        summary(sb, "voicechat_compress_seconds", "decoding or encoding sound with a SpeechCodec", compress);
+        List<ClientConnection> clients = server.getClients();
+        sb.append("# HELP voicechat_connections connected clients\n# TYPE voicechat_connections gauge\nvoicechat_connections ").append(clients.size()).append('\n');
+        sb.append("# TYPE voicechat_connection_queue_depth gauge\n");
+        for (ClientConnection cc : clients) {
+            sb.append("voicechat_connection_queue_depth{chid=\"").append(cc.getChId()).append("\"} ").append(cc.getQueueSize()).append('\n');
+        }
+        connection(sb, "voicechat_connection_frames_in_total", clients, 0);
+        connection(sb, "voicechat_connection_frames_out_total", clients, 1);
+        connection(sb, "voicechat_connection_bytes_in_total", clients, 2);
+        connection(sb, "voicechat_connection_bytes_out_total", clients, 3);
+        connection(sb, "voicechat_connection_dropped_full_total", clients, 4);
+        connection(sb, "voicechat_connection_dropped_expired_total", clients, 5);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, Counter c) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(c.sum()).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, Histogram h) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" summary\n");
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (double q : quantiles) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ").append(h.getPercentile(q) / 1e9).append('\n');
+        }
+        sb.append(name).append("_sum ").append(h.getSum() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(h.getCount()).append('\n');
+    }
+
+    private static void connection(StringBuilder sb, String name, List<ClientConnection> clients, int which) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        for (ClientConnection cc : clients) {
+            long v = which == 0 ? cc.getFramesIn() : which == 1 ? cc.getFramesOut() : which == 2 ? cc.getBytesIn() : which == 3 ? cc.getBytesOut() : which == 4 ? cc.getDroppedFull() : cc.getDroppedExpired();
+            sb.append(name).append("{chid=\"").append(cc.getChId()).append("\"} ").append(v).append('\n');
+        }
+    }
+}
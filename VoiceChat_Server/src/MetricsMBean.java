@@ -0,0 +1,44 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * what Metrics shows through JMX (jconsole, VisualVM). counts are since the
+ * server started, durations in microseconds
+ *
+ */
+public interface MetricsMBean {
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDroppedFull();
+
+    long getDroppedExpired();
+
+    int getConnections();
+
+    int getMaxQueueDepth();
+
+    double getDispatchP50Micros();
+
+    double getDispatchP99Micros();
+
+    double getDispatchMaxMicros();
+
+    double getSerializeP50Micros();
+
+    double getSerializeP99Micros();
+
+    double getCompressP50Micros();
+
+    double getCompressP99Micros();
+
+    String getReport();
+}
@@ -0,0 +1,305 @@
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * server side mixing (MCU mode). instead of forwarding every speaker's packets
+ * to every listener, the server decodes them, and every 20ms sends each
+ * listener one packet with everybody else mixed together. a client receives
+ * one stream and plays it with one AudioChannel, no matter how many people
+ * talk at the same time. when nobody talks nothing is sent, after a silence
+ * packet telling the listeners that the mix stopped.
+ * speakers can use any SpeechCodec, and each listener gets the mix in the
+ * codec it negotiated (GZIP for old clients). mixing is done in 16 bit at the
+ * rate of the SessionFormat; what clients in the LEGACY format send is
+ * resampled to it, and what they receive is resampled back.
+ * all the mixing is done on arrays allocated once; the only allocations are
+ * the compressed packets that are sent. each Room has its own Mixer, all
+ * ticked together by the BroadcastThread, which is the only one using them
+ *
+ */
+public class Mixer {
+
+    public static final long MIX_CHID = 0; //chId of the mixed stream, as seen by the clients
+    private static final int RING_MS = 300; //at least this much audio is buffered for each speaker
+    private static final int MAX_PACKET = 65536; //longest decompressed packet
+    private static final long IDLE_TIMEOUT = 5000; //ms of silence after which a speaker is forgotten
+    private final int sampleRate;
+    private final int ringSize; //samples buffered for each speaker, a power of 2
+    private final int tickSamples; //samples mixed each tick
+    private final long tickNanos;
+    private final int startSamples; //a speaker is mixed only when this many samples are buffered, so a packet arriving a little late doesn't cause a gap
+    private final int ttl; //ms the mixed frames can wait in the queues of the listeners
+    private ArrayList<Source> sources = new ArrayList<Source>(); //everybody who sent something recently
+    private LongMap<Source> byChId = new LongMap<Source>(); //the same, to find the one a message is from
+    private int nSpeaking; //sources mixed in this tick
+    private int[] total; //sum of all the speakers
+    private short[] mix; //what a listener hears
+    private short[] decoded = new short[MAX_PACKET];
+    private short[] resampled = new short[MAX_PACKET]; //decoded or mixed samples, converted to or from the LEGACY rate
+    private Transcoder transcoder = new Transcoder();
+    private SharedFrame[] everybody = new SharedFrame[FrameCodec.MAX_CODECS]; //the mix of all the speakers in each codec, heard by the listeners that are not speaking. encoded only once per codec
+    private SharedFrame[] everybodyLegacy = new SharedFrame[FrameCodec.MAX_CODECS]; //the same, for the listeners in the LEGACY format
+    private Resampler everybodyToLegacy; //null if the session is in the LEGACY rate
+    private int everybodyToLegacyTick; //last tick it was fed
+    private short[] everybodyLegacyMix; //the mix of all the speakers at the LEGACY rate, resampled once per tick
+    private int ticks = 0; //mixed so far
+    private boolean mixing = false; //true if the last tick sent a mix
+
+    /**
+     * a speaker: its decoded samples waiting to be mixed
+     */
+    private class Source {
+
+        private long chId;
+        private short[] ring = new short[ringSize];
+        private long head = 0, tail = 0; //samples taken and added so far
+        private boolean playing = false; //false while buffering
+        private boolean mixed = false; //true if it's mixed in this tick
+        private long lastHeard;
+        private int[] frame = new int[tickSamples]; //what this source contributed to the current tick
+        private Resampler fromLegacy, toLegacy; //for a client in the LEGACY format: what it sends, and the mix it receives. created when first needed
+        private int toLegacyTick; //last tick toLegacy was fed
+
+        private Source(long chId) {
+            this.chId = chId;
+        }
+
+        private void add(short[] samples, int len) {
+            for (int i = 0; i < len; i++) {
+                ring[(int) (tail++ & (ringSize - 1))] = samples[i];
+            }
+            if (tail - head > ringSize) { //too far behind, throw away the oldest samples to keep latency down
+                head = tail - ringSize;
+            }
+        }
+
+        private int available() {
+            return (int) (tail - head);
+        }
+
+        private void take() { //moves up to a tick of samples to frame, silence after that
+            int n = Math.min(available(), tickSamples);
+            for (int i = 0; i < n; i++) {
+                frame[i] = ring[(int) (head++ & (ringSize - 1))];
+            }
+            for (int i = n; i < tickSamples; i++) {
+                frame[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * mixes at the rate of format, a frame each tick. the frames sent are
+     * thrown away if they wait more than ttl ms in the queue of a listener
+     */
+    public Mixer(SessionFormat format, int ttl) {
+        this.ttl = ttl;
+        sampleRate = format.getSampleRate();
+        ringSize = Integer.highestOneBit(sampleRate * RING_MS / 1000) << 1;
+        tickSamples = format.getFrameSamples();
+        tickNanos = (long) (tickSamples * 1000000000.0 / sampleRate);
+        startSamples = tickSamples * 2;
+        total = new int[tickSamples];
+        mix = new short[tickSamples];
+        if (sampleRate != SessionFormat.LEGACY.getSampleRate()) {
+            everybodyToLegacy = new Resampler(sampleRate, SessionFormat.LEGACY.getSampleRate());
+            everybodyLegacyMix = new short[everybodyToLegacy.maxOutput(tickSamples)];
+        }
+    }
+
+    /**
+     * decodes a message received from a client and buffers its samples.
+     * legacy is true if the client is in the LEGACY format
+     */
+    public void add(Message m, boolean legacy) {
+        Source s = byChId.get(m.getChId());
+        if (s == null) {
+            s = new Source(m.getChId());
+            sources.add(s);
+            byChId.put(m.getChId(), s);
+        }
+        s.lastHeard = System.nanoTime() / 1000000L;
+        byte[] data = ((SoundPacket) m.getData()).getData();
+        if (data == null) { //silence, nothing to mix
+            return;
+        }
+        try {
+            int n = transcoder.decode((SoundPacket) m.getData(), decoded);
+            if (legacy && everybodyToLegacy != null) {
+                if (s.fromLegacy == null) {
+                    s.fromLegacy = new Resampler(SessionFormat.LEGACY.getSampleRate(), sampleRate);
+                }
+                if (resampled.length < s.fromLegacy.maxOutput(n)) {
+                    resampled = new short[s.fromLegacy.maxOutput(n)];
+                }
+                s.add(resampled, s.fromLegacy.process(decoded, n, resampled));
+            } else {
+                s.add(decoded, n);
+            }
+        } catch (IOException ex) { //not valid audio, ignore it
+        }
+    }
+
+    /**
+     * duration of a tick, as given by the sample rate. the caller schedules
+     * the ticks from this, so they don't drift
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * mixes a tick and sends it to the clients
+     */
+    public void tick(List<ClientConnection> clients) {
+        ticks++;
+        mixTick(clients);
+        long now = System.nanoTime() / 1000000L;
+        for (int i = sources.size() - 1; i >= 0; i--) { //forget the speakers that left
+            if (now - sources.get(i).lastHeard > IDLE_TIMEOUT) {
+                byChId.remove(sources.remove(i).chId);
+            }
+        }
+    }
+
+    private void mixTick(List<ClientConnection> clients) {
+        nSpeaking = 0;
+        for (int i = 0; i < tickSamples; i++) {
+            total[i] = 0;
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            Source s = sources.get(i);
+            s.mixed = false;
+            if (!s.playing && s.available() >= startSamples) {
+                s.playing = true;
+            } else if (s.playing && s.available() == 0) { //ran out of samples, buffer again before playing
+                s.playing = false;
+            }
+            if (!s.playing) {
+                continue;
+            }
+            s.take();
+            s.mixed = true;
+            for (int j = 0; j < tickSamples; j++) {
+                total[j] += s.frame[j];
+            }
+            nSpeaking++;
+        }
+        if (nSpeaking == 0) { //nobody is talking, send nothing
+            if (mixing) { //but tell the listeners the mix stopped, so they play comfort noise instead of concealing
+                SharedFrame f = encode(true, Codecs.GZIP, mix, 0);
+                for (ClientConnection cc : clients) {
+                    cc.addToQueue(f.retain());
+                }
+                f.release();
+                mixing = false;
+            }
+            return;
+        }
+        mixing = true;
+        boolean everybodyMixed = false, everybodySilent = false, everybodyResampled = false;
+        int everybodyLegacyLength = 0;
+        for (ClientConnection cc : clients) {
+            Source own = byChId.get(cc.getChId());
+            if (own != null && !own.mixed) { //not talking in this tick
+                own = null;
+            }
+            int codec = cc.getCodec();
+            boolean legacy = cc.getVersion() < FrameCodec.FORMAT_VERSION && everybodyToLegacy != null;
+            if (own == null) {
+                SharedFrame[] cache = legacy ? everybodyLegacy : everybody;
+                if (cache[codec] == null) {
+                    if (!everybodyMixed) {
+                        everybodySilent = mix(null);
+                        everybodyMixed = true;
+                    }
+                    if (legacy && !everybodySilent && !everybodyResampled) { //once for all the codecs, or the resampler would see the tick more than once
+                        everybodyLegacyLength = toLegacy(everybodyToLegacy, everybodyToLegacyTick, everybodyLegacyMix);
+                        everybodyToLegacyTick = ticks;
+                        everybodyResampled = true;
+                    }
+                    cache[codec] = legacy ? encode(everybodySilent, codec, everybodyLegacyMix, everybodyLegacyLength) : encode(everybodySilent, codec, mix, tickSamples);
+                }
+                cc.addToQueue(cache[codec].retain());
+            } else if (nSpeaking > 1) { //everybody else, without the listener's own voice
+                everybodyMixed = false; //mix is overwritten
+                boolean silent = mix(own);
+                SharedFrame f;
+                if (legacy) {
+                    if (own.toLegacy == null) {
+                        own.toLegacy = new Resampler(sampleRate, SessionFormat.LEGACY.getSampleRate());
+                    }
+                    int n = 0;
+                    if (!silent) {
+                        n = toLegacy(own.toLegacy, own.toLegacyTick, resampled);
+                        own.toLegacyTick = ticks;
+                    }
+                    f = encode(silent, codec, resampled, n);
+                } else {
+                    f = encode(silent, codec, mix, tickSamples);
+                }
+                cc.addToQueue(f);
+            }
+        }
+        release(everybody);
+        release(everybodyLegacy);
+    }
+
+    private static void release(SharedFrame[] cache) {
+        for (int i = 0; i < cache.length; i++) {
+            if (cache[i] != null) {
+                cache[i].release();
+                cache[i] = null;
+            }
+        }
+    }
+
+    private boolean mix(Source leaveOut) { //mixes total without one source, clipping to 16 bit. returns true if the mix is silent
+        boolean silent = true;
+        for (int i = 0; i < tickSamples; i++) {
+            int v = leaveOut == null ? total[i] : total[i] - leaveOut.frame[i];
+            if (v > Short.MAX_VALUE) {
+                v = Short.MAX_VALUE;
+            } else if (v < Short.MIN_VALUE) {
+                v = Short.MIN_VALUE;
+            }
+            mix[i] = (short) v;
+            silent &= v == 0;
+        }
+        return silent;
+    }
+
+    /**
+     * resamples mix to the LEGACY rate. the resamplers only see the ticks in
+     * which their listener gets sound, so one that wasn't fed in the previous
+     * tick starts over instead of filtering with the samples from before the
+     * gap
+     */
+    private int toLegacy(Resampler r, int lastTick, short[] out) {
+        if (lastTick != ticks - 1) {
+            r.reset();
+        }
+        return r.process(mix, tickSamples, out);
+    }
+
+    private SharedFrame encode(boolean silent, int codec, short[] samples, int len) { //encodes the first len samples for a listener
+        SoundPacket p = new SoundPacket(null);
+        if (!silent) {
+            try {
+                p = new SoundPacket(transcoder.encode(samples, len, codec), codec);
+            } catch (IOException ex) { //can't happen, the codec was negotiated with us. send silence
+            }
+        }
+        Message m = new Message(MIX_CHID, System.nanoTime() / 1000000L, p);
+        m.setSeq(ticks);
+        m.setTtl(ttl);
+        return SharedFrame.encode(m);
+    }
+}
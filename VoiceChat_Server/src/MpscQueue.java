@@ -0,0 +1,107 @@
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * lock-free multi-producer single-consumer queue. any thread can offer(), only
+ * one thread (the BroadcastThread) can poll(). offer() is a single atomic swap,
+ * so producers never block or retry. when the queue is empty the consumer parks
+ * instead of sleeping, and the first producer that adds something unparks it,
+ * so a message is dispatched as soon as it arrives
+ *
+ */
+public class MpscQueue<E> {
+
+    private static class Node<E> {
+
+        private E value;
+        private volatile Node<E> next;
+
+        private Node(E value) {
+            this.value = value;
+        }
+    }
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<MpscQueue> WAITING = AtomicIntegerFieldUpdater.newUpdater(MpscQueue.class, "waiting"); //the class literal is raw, whatever E is
+    private final AtomicReference<Node<E>> tail; //last node, swapped by producers
+    private Node<E> head; //node before the first element, only used by the consumer
+    private volatile int waiting = 0; //1 when the consumer is (about to be) parked
+    private volatile Thread consumer;
+
+    public MpscQueue() {
+        head = new Node<E>(null);
+        tail = new AtomicReference<Node<E>>(head);
+    }
+
+    /**
+     * adds an element. can be called by any thread
+     */
+    public void offer(E e) {
+        Node<E> n = new Node<E>(e);
+        Node<E> prev = tail.getAndSet(n);
+        prev.next = n; //between the swap and this, the consumer sees the queue as empty, but we'll unpark it after this
+        if (waiting == 1 && WAITING.compareAndSet(this, 1, 0)) { //only the first producer pays for the unpark
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * returns the first element, or null if the queue is empty. consumer only
+     */
+    public E poll() {
+        Node<E> n = head.next;
+        if (n == null) {
+            return null;
+        }
+        E e = n.value;
+        n.value = null;
+        head = n;
+        return e;
+    }
+
+    /**
+     * returns the first element, waiting up to the specified time for one to
+     * arrive. returns null if none arrives in time. consumer only
+     */
+    public E poll(long timeout, TimeUnit unit) {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        consumer = Thread.currentThread();
+        for (;;) {
+            waiting = 1;
+            e = poll(); //check again, something may have been added before producers could see waiting
+            if (e != null) {
+                waiting = 0;
+                return e;
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                waiting = 0;
+                return null;
+            }
+            LockSupport.parkNanos(this, left);
+            waiting = 0;
+            e = poll();
+            if (e != null) {
+                return e;
+            }
+        }
+    }
+
+    /**
+     * true if there's nothing to poll. consumer only
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
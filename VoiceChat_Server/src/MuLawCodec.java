@@ -0,0 +1,77 @@
+
+import java.io.IOException;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * G.711 mu-law: one byte per sample, with more resolution for quiet sounds
+ * than for loud ones. decoded with a table, encoded with a few shifts
+ *
+ */
+public class MuLawCodec implements SpeechCodec {
+
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+    private static final short[] DECODE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int u = ~i;
+            int t = ((u & 0x0f) << 3) + BIAS;
+            t <<= (u & 0x70) >> 4;
+            DECODE[i] = (short) ((u & 0x80) != 0 ? BIAS - t : t - BIAS);
+        }
+    }
+
+    @Override
+    public int getId() {
+        return Codecs.PCMU;
+    }
+
+    @Override
+    public String getName() {
+        return "PCMU";
+    }
+
+    @Override
+    public int maxEncodedLength(int samples) {
+        return samples;
+    }
+
+    @Override
+    public int encode(short[] pcm, int samples, byte[] out) {
+        for (int i = 0; i < samples; i++) {
+            out[i] = encode(pcm[i]);
+        }
+        return samples;
+    }
+
+    @Override
+    public int decode(byte[] in, int len, short[] pcm) throws IOException {
+        if (len > pcm.length) {
+            throw new IOException("mu-law frame too long");
+        }
+        for (int i = 0; i < len; i++) {
+            pcm[i] = DECODE[in[i] & 0xff];
+        }
+        return len;
+    }
+
+    private static byte encode(int s) {
+        int mask = 0xff;
+        if (s < 0) {
+            s = -s;
+            mask = 0x7f;
+        }
+        s = Math.min(s, CLIP) + BIAS;
+        int exponent = 7;
+        for (int bit = 0x4000; (s & bit) == 0 && exponent > 0; bit >>= 1) {
+            exponent--;
+        }
+        int mantissa = (s >> (exponent + 3)) & 0x0f;
+        return (byte) (((exponent << 4) | mantissa) ^ mask);
+    }
+}
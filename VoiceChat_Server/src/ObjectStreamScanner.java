@@ -0,0 +1,295 @@
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * finds where the objects written by a client's ObjectOutputStream end, without
+ * blocking. an ObjectInputStream can't be used on a non-blocking channel
+ * because it blocks (or breaks) when an object is only partially received, so
+ * the EventLoop uses this class to wait until a whole object is in its buffer
+ * and only then hands those bytes to the ObjectInputStream.
+ * it follows the Java Object Serialization Stream Protocol, keeping track of
+ * class descriptors and handles exactly like the real stream does.
+ *
+ */
+public class ObjectStreamScanner implements ObjectStreamConstants {
+
+    private static final Object OTHER = new Object(); //handle of something that is not a class descriptor
+    private ArrayList<Object> handles = new ArrayList<Object>(); //same handle table as the remote ObjectOutputStream
+    private boolean headerDone = false;
+    private ByteBuffer b; //buffer being scanned, only valid during scan()
+
+    /**
+     * information about a class descriptor, needed to know how long the data of
+     * an instance is
+     */
+    private static class ClassInfo {
+
+        String name;
+        byte flags;
+        char[] fieldTypes; //type codes of serialized fields, in stream order
+        ClassInfo superClass;
+    }
+
+    /**
+     * thrown internally when the buffer ends in the middle of an object
+     */
+    private static class Incomplete extends Exception {
+
+        private static final long serialVersionUID = 1L;
+        private static final Incomplete INSTANCE = new Incomplete();
+
+        private Incomplete() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * looks for the next complete unit of the stream (the stream header or a
+     * top level object) starting at the buffer's position. the buffer's
+     * position is not modified. returns the position where that unit ends, or
+     * -1 if more bytes are needed
+     */
+    public int scan(ByteBuffer buf) throws IOException {
+        b = buf.duplicate();
+        int handlesMark = handles.size();
+        ArrayList<Object> beforeReset = null;
+        try {
+            if (!headerDone) {
+                need(4);
+                if (b.getShort() != STREAM_MAGIC || b.getShort() != STREAM_VERSION) {
+                    throw new StreamCorruptedException("invalid stream header");
+                }
+                headerDone = true;
+                return b.position();
+            }
+            need(1);
+            while (b.get(b.position()) == TC_RESET) { //resets come before an object and are processed together with it by ObjectInputStream
+                if (beforeReset == null) {
+                    beforeReset = handles;
+                    handles = new ArrayList<Object>();
+                } else {
+                    handles.clear();
+                }
+                handlesMark = 0;
+                b.get();
+                need(1);
+            }
+            content();
+            return b.position();
+        } catch (Incomplete e) { //undo what we learned from the partial object, we'll scan it again when more bytes arrive
+            if (beforeReset != null) {
+                handles = beforeReset;
+            } else {
+                while (handles.size() > handlesMark) {
+                    handles.remove(handles.size() - 1);
+                }
+            }
+            return -1;
+        } finally {
+            b = null;
+        }
+    }
+
+    private void need(int n) throws Incomplete {
+        if (b.remaining() < n) {
+            throw Incomplete.INSTANCE;
+        }
+    }
+
+    private void skip(long n) throws Incomplete {
+        if (b.remaining() < n) {
+            throw Incomplete.INSTANCE;
+        }
+        b.position(b.position() + (int) n);
+    }
+
+    private byte readByte() throws Incomplete {
+        need(1);
+        return b.get();
+    }
+
+    private int readInt() throws Incomplete {
+        need(4);
+        return b.getInt();
+    }
+
+    private String readUTF() throws Incomplete, IOException {
+        need(2);
+        int len = b.getShort() & 0xFFFF;
+        need(len);
+        byte[] utf = new byte[len];
+        b.get(utf);
+        return new String(utf, "UTF-8"); //class and field names are plain ascii in practice
+    }
+
+    private void content() throws Incomplete, IOException {
+        byte tc = b.get(b.position());
+        if (tc == TC_BLOCKDATA) {
+            b.get();
+            skip(readByte() & 0xFF);
+        } else if (tc == TC_BLOCKDATALONG) {
+            b.get();
+            skip(readInt());
+        } else {
+            object();
+        }
+    }
+
+    private void object() throws Incomplete, IOException {
+        byte tc = readByte();
+        switch (tc) {
+            case TC_NULL:
+                return;
+            case TC_REFERENCE:
+                readInt();
+                return;
+            case TC_OBJECT: {
+                ClassInfo c = classDesc(readByte());
+                handles.add(OTHER);
+                classData(c);
+                return;
+            }
+            case TC_CLASSDESC:
+                newClassDesc();
+                return;
+            case TC_CLASS:
+                classDesc(readByte());
+                handles.add(OTHER);
+                return;
+            case TC_STRING:
+                need(2);
+                skip(b.getShort() & 0xFFFF);
+                handles.add(OTHER);
+                return;
+            case TC_LONGSTRING:
+                need(8);
+                skip(b.getLong());
+                handles.add(OTHER);
+                return;
+            case TC_ARRAY: {
+                ClassInfo c = classDesc(readByte());
+                handles.add(OTHER);
+                int size = readInt();
+                char type = c.name.charAt(1);
+                if (type == 'L' || type == '[') {
+                    for (int i = 0; i < size; i++) {
+                        object();
+                    }
+                } else {
+                    skip((long) size * primitiveSize(type));
+                }
+                return;
+            }
+            case TC_ENUM:
+                classDesc(readByte());
+                handles.add(OTHER);
+                object(); //constant name
+                return;
+            default:
+                throw new StreamCorruptedException("unsupported type code " + tc);
+        }
+    }
+
+    private ClassInfo classDesc(byte tc) throws Incomplete, IOException {
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_CLASSDESC:
+                return newClassDesc();
+            case TC_REFERENCE: {
+                int h = readInt() - baseWireHandle;
+                if (h < 0 || h >= handles.size() || !(handles.get(h) instanceof ClassInfo)) {
+                    throw new StreamCorruptedException("invalid class descriptor handle");
+                }
+                return (ClassInfo) handles.get(h);
+            }
+            default:
+                throw new StreamCorruptedException("unsupported class descriptor " + tc);
+        }
+    }
+
+    private ClassInfo newClassDesc() throws Incomplete, IOException {
+        ClassInfo c = new ClassInfo();
+        c.name = readUTF();
+        skip(8); //serialVersionUID
+        handles.add(c);
+        c.flags = readByte();
+        need(2);
+        int nFields = b.getShort();
+        c.fieldTypes = new char[nFields];
+        for (int i = 0; i < nFields; i++) {
+            c.fieldTypes[i] = (char) readByte();
+            need(2);
+            skip(b.getShort() & 0xFFFF); //field name
+            if (c.fieldTypes[i] == 'L' || c.fieldTypes[i] == '[') {
+                object(); //field's class name
+            }
+        }
+        annotation();
+        c.superClass = classDesc(readByte());
+        return c;
+    }
+
+    private void annotation() throws Incomplete, IOException {
+        for (;;) {
+            need(1);
+            if (b.get(b.position()) == TC_ENDBLOCKDATA) {
+                b.get();
+                return;
+            }
+            content();
+        }
+    }
+
+    private void classData(ClassInfo c) throws Incomplete, IOException {
+        if (c == null) {
+            return;
+        }
+        classData(c.superClass); //data of superclasses comes first
+        if ((c.flags & SC_EXTERNALIZABLE) != 0) {
+            if ((c.flags & SC_BLOCK_DATA) == 0) {
+                throw new StreamCorruptedException("old externalizable format not supported");
+            }
+            annotation();
+            return;
+        }
+        for (char t : c.fieldTypes) {
+            if (t == 'L' || t == '[') {
+                object();
+            } else {
+                skip(primitiveSize(t));
+            }
+        }
+        if ((c.flags & SC_WRITE_METHOD) != 0) {
+            annotation();
+        }
+    }
+
+    private static int primitiveSize(char type) throws StreamCorruptedException {
+        switch (type) {
+            case 'B':
+            case 'Z':
+                return 1;
+            case 'C':
+            case 'S':
+                return 2;
+            case 'I':
+            case 'F':
+                return 4;
+            case 'J':
+            case 'D':
+                return 8;
+            default:
+                throw new StreamCorruptedException("invalid type code " + type);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * converts 16 bit samples from one rate to another with a polyphase FIR
+ * filter. the input is upsampled by L, low pass filtered and downsampled by M
+ * (L/M is the ratio of the two rates, reduced), but only the samples that are
+ * kept are computed, each with one of the L phases of the filter. the filter
+ * is a Kaiser windowed sinc that stops below the lower of the two Nyquist
+ * frequencies, so downsampling doesn't alias and upsampling doesn't leave
+ * images.
+ * the last input samples are kept between calls, so a stream can be converted
+ * a frame at a time without clicks between the frames. not thread safe: each
+ * stream needs its own instance
+ *
+ */
+public class Resampler {
+
+    private static final int TAPS = 32; //per phase when upsampling, proportionally more when downsampling
+    private static final double CUTOFF = 0.86; //end of the passband, as a fraction of the lower Nyquist frequency. the transition band ends at Nyquist
+    private static final double BETA = 7; //Kaiser window, ~70dB of stopband attenuation
+    private final int inRate, outRate;
+    private final int up, down; //L and M
+    private final int taps; //per phase
+    private final float[] coefs; //phase p is coefs[p * taps] to coefs[p * taps + taps - 1], for the newest input sample to the oldest
+    private float[] buf; //the last taps - 1 input samples of the previous call, followed by the input of this one
+    private int next = 0; //index in the input of the newest sample used by the next output
+    private int phase = 0; //phase of the next output
+
+    public Resampler(int inRate, int outRate) {
+        if (inRate <= 0 || outRate <= 0) {
+            throw new IllegalArgumentException("invalid rates " + inRate + " " + outRate);
+        }
+        this.inRate = inRate;
+        this.outRate = outRate;
+        int g = gcd(inRate, outRate);
+        up = outRate / g;
+        down = inRate / g;
+        taps = TAPS * Math.max(1, (down + up - 1) / up); //the cutoff is lower when downsampling, the filter must be longer for the same transition band
+        int n = up * taps;
+        double fc = CUTOFF * 0.5 / Math.max(up, down); //cycles per upsampled sample
+        double center = (n - 1) / 2.0;
+        double[] h = new double[n];
+        for (int k = 0; k < n; k++) {
+            double x = k - center;
+            double sinc = x == 0 ? 1 : Math.sin(2 * Math.PI * fc * x) / (2 * Math.PI * fc * x);
+            double w = x / (center + 1);
+            h[k] = 2 * fc * sinc * bessel0(BETA * Math.sqrt(1 - w * w)) / bessel0(BETA);
+        }
+        coefs = new float[n];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                sum += h[p + j * up];
+            }
+            for (int j = 0; j < taps; j++) { //every phase has a gain of 1, so a constant input gives a constant output
+                coefs[p * taps + j] = (float) (h[p + j * up] / sum);
+            }
+        }
+        buf = new float[taps - 1];
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static double bessel0(double x) { //modified Bessel function of the first kind, order 0
+        double sum = 1, term = 1;
+        for (int k = 1; term > sum * 1e-12; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    public int getInRate() {
+        return inRate;
+    }
+
+    public int getOutRate() {
+        return outRate;
+    }
+
+    /**
+     * the most samples that process() can return for len input samples
+     */
+    public int maxOutput(int len) {
+        return (int) ((long) len * up / down) + 1;
+    }
+
+    /**
+     * how late the output is with respect to the input, in seconds
+     */
+    public double getDelay() {
+        return (up * taps - 1) / 2.0 / up / inRate;
+    }
+
+    /**
+     * forgets the input of the previous calls, for a stream that starts again
+     * after a gap
+     */
+    public void reset() {
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = 0;
+        }
+        next = 0;
+        phase = 0;
+    }
+
+    /**
+     * converts len samples of in, writing the output in out (which must have
+     * at least maxOutput(len) elements) and returns how many they are
+     */
+    public int process(short[] in, int len, short[] out) {
+        int h = taps - 1;
+        if (buf.length < h + len) {
+            float[] bigger = new float[h + len];
+            System.arraycopy(buf, 0, bigger, 0, h);
+            buf = bigger;
+        }
+        for (int i = 0; i < len; i++) {
+            buf[h + i] = in[i];
+        }
+        int n = 0;
+        while (next < len) {
+            int c = phase * taps;
+            int x = next + h; //newest sample in buf
+            float acc = 0;
+            for (int j = 0; j < taps; j++) {
+                acc += coefs[c + j] * buf[x - j];
+            }
+            out[n++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(acc)));
+            phase += down;
+            next += phase / up;
+            phase %= up;
+        }
+        next -= len;
+        System.arraycopy(buf, len, buf, 0, h); //keep the last taps - 1 samples for the next call
+        return n;
+    }
+}
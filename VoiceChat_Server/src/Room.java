@@ -0,0 +1,60 @@
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * a conversation: the clients in a room only hear each other, and a message
+ * is dispatched only to the members of its sender's room. every client starts
+ * in the lobby; the other rooms are created when someone joins them and
+ * removed when they're empty. in mixing and active speaker mode each room has
+ * its own Mixer or SpeakerSelector.
+ * owned by the BroadcastThread, nothing here is thread safe
+ *
+ */
+public class Room {
+
+    public static final String LOBBY = RoomControl.LOBBY; //name of the room where clients start
+    private String name;
+    private ArrayList<ClientConnection> members = new ArrayList<ClientConnection>();
+    private Mixer mixer; //null if not in mixing mode
+    private SpeakerSelector selector; //null if not in active speaker mode
+
+    public Room(String name, Mixer mixer, SpeakerSelector selector) {
+        this.name = name;
+        this.mixer = mixer;
+        this.selector = selector;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<ClientConnection> getMembers() {
+        return members;
+    }
+
+    public Mixer getMixer() {
+        return mixer;
+    }
+
+    public SpeakerSelector getSelector() {
+        return selector;
+    }
+
+    public void add(ClientConnection cc) {
+        members.add(cc);
+    }
+
+    public void remove(ClientConnection cc) {
+        members.remove(cc);
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+}
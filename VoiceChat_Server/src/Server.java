@@ -2,12 +2,19 @@
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import org.teleal.cling.UpnpService;
 import org.teleal.cling.UpnpServiceImpl;
 import org.teleal.cling.support.igd.PortMappingListener;
@@ -19,39 +26,59 @@ import org.teleal.cling.support.model.PortMapping;
  */
 /**
  * opens a socket, listens for incoming connections, and creates a
- * ClientConnection for each client. also creates a BroadcastThread that passes
- * messages from the broadcastQueue to all the instances of ClientConnection
+ * ClientConnection for each client, served by its own ClientThread, by a
+ * reader and a writer thread (platform or virtual) or, in NIO mode, by one of a
+ * few EventLoops. also creates a BroadcastThread that passes
+ * messages from the broadcastQueue to the ClientConnections in the same Room
+ * as their sender (or, in mixing mode, mixes them and sends each client a single stream; in
+ * active speaker mode only the loudest speakers are broadcast)
  *
  *  
  */
 public class Server {
     
-    private ArrayList<Message> broadCastQueue = new ArrayList<Message>();    
-    private ArrayList<ClientConnection> clients = new ArrayList<ClientConnection>();
+    private static final long SWEEP_INTERVAL = 100; //ms between checks for dead connections
+    private MpscQueue<Inbound> broadCastQueue = new MpscQueue<Inbound>(); //filled by all the ClientConnections, emptied by the BroadcastThread
+    private CopyOnWriteArrayList<ClientConnection> clients = new CopyOnWriteArrayList<ClientConnection>(); //read for every message, modified only when clients come and go
     private int port;
+    private int queueSize; //size of the queue of each ClientConnection
+    private int ttl; //ms the sound frames can wait in those queues
     
     private UpnpService u; //when upnp is enabled, this points to the upnp service
+    private MediaServer media; //UDP transport, null if disabled
+    private boolean mixing; //in mixing mode, each room's Mixer mixes the messages instead of broadcasting them
+    private int activeSpeakers; //in active speaker mode (> 0), each room's SpeakerSelector decides which messages are broadcast
+    private SessionFormat format; //rate and frame duration of the clients that support it, and of the mix
+    private BroadcastThread broadcaster;
     
-    public void addToBroadcastQueue(Message m) { //add a message to the broadcast queue. this method is used by all ClientConnection instances
-        try {
-            broadCastQueue.add(m);
-        } catch (Throwable t) {
-            //mutex error, try again
-            Utils.sleep(1);
-            addToBroadcastQueue(m);
-        }
+    public void addToBroadcastQueue(ClientConnection from, Message m) { //add a message to the broadcast queue. this method is used by all ClientConnection instances
+        broadCastQueue.offer(new Inbound(from, m));
     }
     private ServerSocket s;
     
     public Server(int port, boolean upnp) throws Exception{
-        this.port = port;
-        if(upnp){
+        this(configure(port, upnp));
+    }
+
+    private static ServerConfig configure(int port, boolean upnp) {
+        ServerConfig c = ServerConfig.fromSystemProperties();
+        c.setPort(port);
+        c.setUpnp(upnp);
+        return c;
+    }
+
+    public Server(ServerConfig config) throws Exception{
+        this.port = config.getPort();
+        this.queueSize = config.getQueueSize();
+        this.ttl = config.getTtl();
+        this.format = config.getFormat();
+        if(config.isUpnp()){
             Log.add("Strating...");
             //first we need the address of this machine on the local network
             try {
                 Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
             } catch (SocketException ex) {
-                Log.add("Network error");
+                Log.error("Network error");
                 throw new Exception("Network error");
             }
             String ipAddress = null;
@@ -59,7 +86,7 @@ public class Server {
             try {
                 net = NetworkInterface.getNetworkInterfaces();
             } catch (SocketException e) {
-                Log.add("Not connected to any network");
+                Log.error("Not connected to any network");
                 throw new Exception("Network error");
             }
 
@@ -80,27 +107,101 @@ public class Server {
                 }
             }
             if (ipAddress == null) {
-                Log.add("Not connected to any IPv4 network");
+                Log.error("Not connected to any IPv4 network");
                 throw new Exception("Network error");
             }
-            u = new UpnpServiceImpl(new PortMappingListener(new PortMapping(port, ipAddress, PortMapping.Protocol.TCP)));
+            PortMapping tcp = new PortMapping(port, ipAddress, PortMapping.Protocol.TCP);
+            PortMapping[] mappings = config.isUdp() ? new PortMapping[]{tcp, new PortMapping(port, ipAddress, PortMapping.Protocol.UDP)} : new PortMapping[]{tcp}; //the UDP media port has the same number as the TCP one
+            u = new UpnpServiceImpl(new PortMappingListener(mappings));
             u.getControlPoint().search();
         }
+        ServerSocketChannel ssc = null;
         try {
-            s = new ServerSocket(port); //listen on specified port
+            if (config.getMode() == ServerMode.NIO) {
+                ssc = ServerSocketChannel.open(); //the socket is the same, but accept() gives us channels that can be used with a Selector
+                s = ssc.socket();
+                s.bind(new InetSocketAddress(port));
+            } else {
+                s = new ServerSocket(port); //listen on specified port
+            }
             port = s.getLocalPort();
 	    Log.add("Boom.. Voice Server started.\nIP : " + InetAddress.getLocalHost() + ", Port : " + s.getLocalPort());
             Log.add("Waiting for friends...");
         } catch (IOException ex) {
-            Log.add("Server error " + ex + "(port " + port + ")");
+            Log.error("Server error " + ex + "(port " + port + ")");
             throw new Exception("Error "+ex);
         }
-        new BroadcastThread().start(); //create a BroadcastThread and start it
+        if (config.isUdp()) {
+            try {
+                media = new MediaServer(port, config.getMediaSockets());
+            } catch (IOException ex) { //clients will use TCP only
+                Log.error("UDP error " + ex + "(port " + port + ")");
+            }
+        }
+        if (config.isMixing()) {
+            mixing = true;
+            Log.add("mixing mode");
+        } else if (config.getActiveSpeakers() > 0) {
+            activeSpeakers = config.getActiveSpeakers();
+            Log.add("forwarding the " + config.getActiveSpeakers() + " loudest speakers");
+        }
+        Log.add("audio format " + format);
+        Metrics.start(this, config.getPort(), config.getMetricsPort());
+        broadcaster = new BroadcastThread(); //create a BroadcastThread and start it
+        broadcaster.start();
+        if (config.getMode() == ServerMode.NIO) {
+            acceptNio(ssc, config.getEventLoops());
+        } else {
+            accept(config.getMode());
+        }
+    }
+
+    private Server() { //see detached()
+    }
+
+    /**
+     * a server that opens no socket and starts no thread, for the benchmarks:
+     * the messages given to dispatch() go through the BroadcastThread's code
+     * on the caller's thread
+     */
+    static Server detached(ServerConfig config) {
+        Server s = new Server();
+        s.port = config.getPort();
+        s.queueSize = config.getQueueSize();
+        s.ttl = config.getTtl();
+        s.format = config.getFormat();
+        s.mixing = config.isMixing();
+        s.activeSpeakers = s.mixing ? 0 : config.getActiveSpeakers();
+        s.broadcaster = s.new BroadcastThread();
+        return s;
+    }
+
+    /**
+     * puts a new client in the lobby (m null) or passes a message from it to
+     * its room, like the BroadcastThread does. only for a detached server
+     */
+    void dispatch(ClientConnection from, Message m) {
+        broadcaster.dispatch(from, m);
+    }
+
+    private void accept(ServerMode mode) {
+        if (mode == ServerMode.VIRTUAL && !Threads.virtualSupported()) {
+            Log.warn("virtual threads not supported by this JVM, using platform threads");
+            mode = ServerMode.BLOCKING;
+        }
+        if (mode != ServerMode.THREADS) {
+            Log.add(mode + " mode");
+        }
         for (;;) { //accept all incoming connection
             try {
                 Socket c = s.accept();
-                ClientConnection cc = new ClientConnection(this, c); //create a ClientConnection thread
-                cc.start();
+                ClientConnection cc = new ClientConnection(this, c.getInetAddress(), c.getPort(), queueSize);
+                StreamTransport t = new StreamTransport(cc, c);
+                if (mode == ServerMode.THREADS) {
+                    new ClientThread(cc, t).start(); //create a ClientThread to serve it
+                } else {
+                    t.start(mode == ServerMode.VIRTUAL); //or a reader and a writer
+                }
                 addToClients(cc);
                 Log.add("new client " + c.getInetAddress() + ":" + c.getPort() + " on port " + port);
             } catch (IOException ex) {
@@ -108,51 +209,262 @@ public class Server {
         }
     }
 
+    private void acceptNio(ServerSocketChannel ssc, int nLoops) throws Exception {
+        EventLoop[] loops = new EventLoop[nLoops];
+        for (int i = 0; i < loops.length; i++) { //create the EventLoops that will serve the clients
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        Log.add("NIO mode, " + loops.length + " event loops");
+        for (int next = 0;; next = (next + 1) % loops.length) { //accept all incoming connection and assign them round robin to the EventLoops
+            try {
+                SocketChannel c = ssc.accept();
+                Socket cs = c.socket();
+                ClientConnection cc = new ClientConnection(this, cs.getInetAddress(), cs.getPort(), queueSize);
+                loops[next].register(c, cc);
+                addToClients(cc);
+                Log.add("new client " + cs.getInetAddress() + ":" + cs.getPort() + " on port " + port);
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    public MediaServer getMediaServer() {
+        return media;
+    }
+
+    public int getTtl() { //ms a sound frame can wait to be sent to a client
+        return ttl;
+    }
+
+    /**
+     * the connected clients, for the Metrics. safe to iterate from any thread
+     */
+    List<ClientConnection> getClients() {
+        return clients;
+    }
+
     private void addToClients(ClientConnection cc) {
-        try {
-            clients.add(cc); //add the new connection to the list of connections
-        } catch (Throwable t) {
-            //mutex error, try again
-            Utils.sleep(1);
-            addToClients(cc);
+        clients.add(cc); //add the new connection to the list of connections
+        broadCastQueue.offer(new Inbound(cc, null)); //the BroadcastThread will put it in the lobby
+    }
+
+    /**
+     * a message and the connection it was received from
+     */
+    private static class Inbound {
+
+        private final ClientConnection from;
+        private final Message message; //null when a new client must be put in the lobby
+        private final long received = System.nanoTime(); //for the dispatch time in the Metrics
+
+        private Inbound(ClientConnection from, Message message) {
+            this.from = from;
+            this.message = message;
         }
     }
 
     /**
-     * broadcasts messages to each ClientConnection, and removes dead ones
+     * broadcasts messages to the members of their sender's room, moves
+     * clients between rooms, and removes dead connections
      */
     private class BroadcastThread extends Thread {
+
+        private HashMap<String, Room> rooms = new HashMap<String, Room>(); //rooms with someone in them, and the lobby
+        private Room lobby = createRoom(Room.LOBBY);
+        private long mixStart = System.nanoTime(), mixTicks = 0, tickNanos; //in mixing mode, all the rooms are mixed at the same ticks, scheduled from the sample clock so they don't drift
+        private Transcoder transcoder = new Transcoder(); //turns sound back into GZIP for the clients that don't know its codec, and resamples it for the clients in the other format
+        private final boolean resampling = format.getSampleRate() != SessionFormat.LEGACY.getSampleRate(); //true if the clients in the LEGACY format don't have the rate of the others
         
         public BroadcastThread() {
+            rooms.put(Room.LOBBY, lobby);
+            if (mixing) {
+                tickNanos = lobby.getMixer().getTickNanos();
+            }
         }
         
         @Override
         public void run() {
+            long lastSweep = 0;
             for (;;) {
+                Inbound in = null;
                 try {
-                    ArrayList<ClientConnection> toRemove = new ArrayList<ClientConnection>(); //create a list of dead connections
-                    for (ClientConnection cc : clients) {
-                        if (!cc.isAlive()) { //connection is dead, need to be removed
-                            Log.add("dead connection closed: " + cc.getInetAddress() + ":" + cc.getPort() + " on port " + port);
-                            toRemove.add(cc);
+                    long now = System.nanoTime() / 1000000L;
+                    if (now - lastSweep >= SWEEP_INTERVAL) {
+                        lastSweep = now;
+                        ArrayList<ClientConnection> toRemove = new ArrayList<ClientConnection>(); //create a list of dead connections
+                        for (ClientConnection cc : clients) {
+                            if (cc.isClosed()) { //connection is dead, need to be removed
+                                Log.add("dead connection closed: " + cc.getInetAddress() + ":" + cc.getPort() + " on port " + port + " (dropped " + cc.getDroppedFull() + " full, " + cc.getDroppedExpired() + " old)");
+                                toRemove.add(cc);
+                                leave(cc);
+                            }
                         }
+                        clients.removeAll(toRemove); //delete all dead connections
+                    }
+                    long wait = SWEEP_INTERVAL * 1000000L;
+                    if (mixing) {
+                        wait = Math.min(wait, Math.max(0, mixStart + mixTicks * tickNanos - System.nanoTime()));
+                    }
+                    in = broadCastQueue.poll(wait, TimeUnit.NANOSECONDS); //wait for something to broadcast (or the next tick), woken up as soon as it arrives
+                    if (in != null) {
+                        dispatch(in.from, in.message);
+                        if (in.message != null) {
+                            Metrics.dispatch.record(System.nanoTime() - in.received);
+                        }
+                    }
+                    if (mixing) {
+                        mix();
                     }
-                    clients.removeAll(toRemove); //delete all dead connections
-                    if (broadCastQueue.isEmpty()) { //nothing to send
-                        Utils.sleep(10); //avoid busy wait
+                } catch (RuntimeException ex) { //a bad frame is dropped, the others are still broadcast
+                    Log.add(Log.Level.ERROR, in != null && in.from != null ? in.from.getChId() : -1, "broadcast error " + ex);
+                }
+            }
+        }
+
+        private void dispatch(ClientConnection from, Message m) {
+            if (m == null) { //new client
+                if (!from.isClosed()) {
+                    join(from, lobby);
+                }
+                return;
+            }
+            if (m.getData() instanceof RoomControl) {
+                RoomControl rc = (RoomControl) m.getData();
+                if (from.isClosed() || from.getRoom() == null) {
+                    return;
+                }
+                if (rc.getAction() == RoomControl.JOIN) {
+                    Room r = rooms.get(rc.getRoom());
+                    if (r == null) {
+                        r = createRoom(rc.getRoom());
+                        rooms.put(r.getName(), r);
+                    }
+                    join(from, r);
+                } else if (rc.getAction() == RoomControl.LEAVE) {
+                    join(from, lobby);
+                }
+                from.addToQueue(SharedFrame.encode(new Message(from.getChId(), System.nanoTime() / 1000000L, new RoomControl(RoomControl.JOIN, from.getRoom().getName())))); //tell the client where it is now
+                return;
+            }
+            if (m.getData() instanceof CodecList) {
+                if (from.isClosed()) {
+                    return;
+                }
+                int codec = Codecs.choose(((CodecList) m.getData()).getIds());
+                from.setCodec(codec);
+                from.addToQueue(SharedFrame.encode(new Message(from.getChId(), System.nanoTime() / 1000000L, new CodecList(new byte[]{(byte) codec})))); //tell the client which one to use
+                if (from.getVersion() >= FrameCodec.FORMAT_VERSION) {
+                    from.addToQueue(SharedFrame.encode(new Message(from.getChId(), System.nanoTime() / 1000000L, format))); //and the format to record and play at
+                }
+                Log.add("client " + from.getChId() + " uses codec " + Codecs.create(codec).getName());
+                return;
+            }
+            Room r = from.getRoom();
+            if (r == null) { //not in the lobby yet, or already gone
+                return;
+            }
+            boolean legacy = legacy(from);
+            if (r.getMixer() != null) {
+                r.getMixer().add(m, legacy);
+                return;
+            }
+            if (r.getSelector() != null && !r.getSelector().forward(m)) {
+                return;
+            }
+            SharedFrame f = SharedFrame.encode(m); //encode it only once, all clients will send the same bytes
+            SharedFrame gzip = null; //the same in GZIP, for the clients that don't know its codec. transcoded only if one of them is there
+            SharedFrame resampled = null; //the same at the rate of the other format, for the clients in it
+            boolean coded = ((SoundPacket) m.getData()).getCodec() != Codecs.GZIP;
+            List<ClientConnection> members = r.getMembers();
+            try {
+                for (int i = 0; i < members.size(); i++) { //broadcast the message to the room
+                    ClientConnection cc = members.get(i);
+                    if (cc == from) {
                         continue;
-                    } else { //we got something to broadcast
-                        Message m = broadCastQueue.get(0);
-                        for (ClientConnection cc : clients) { //broadcast the message
-                            if (cc.getChId() != m.getChId()) {
-                                cc.addToQueue(m);
-                            }
+                    }
+                    if (resampling && legacy(cc) != legacy) {
+                        if (resampled == null) {
+                            resampled = SharedFrame.encode(resample(from, m, legacy));
+                        }
+                        cc.addToQueue(resampled.retain());
+                    } else if (coded && cc.getVersion() < FrameCodec.CODEC_VERSION) {
+                        if (gzip == null) {
+                            gzip = SharedFrame.encode(transcoder.transcode(m, Codecs.GZIP, null));
                         }
-                        broadCastQueue.remove(m); //remove it from the broadcast queue
+                        cc.addToQueue(gzip.retain());
+                    } else {
+                        cc.addToQueue(f.retain());
                     }
-                } catch (Throwable t) {
-                    //mutex error, try again
                 }
+            } catch (IOException ex) { //can't be decoded, nobody will play it anyway
+            } finally { //even if a member failed, or the frames would never go back to the pool
+                f.release();
+                if (gzip != null) {
+                    gzip.release();
+                }
+                if (resampled != null) {
+                    resampled.release();
+                }
+            }
+        }
+
+        private boolean legacy(ClientConnection cc) { //true if the client is in the LEGACY format
+            return cc.getVersion() < FrameCodec.FORMAT_VERSION;
+        }
+
+        /**
+         * converts a message from a client to the rate of the other format:
+         * GZIP at the LEGACY rate, that every old client can play, or the
+         * sender's codec at the session rate
+         */
+        private Message resample(ClientConnection from, Message m, boolean fromLegacy) throws IOException {
+            Resampler r = from.getResampler();
+            if (r == null) {
+                r = fromLegacy ? new Resampler(SessionFormat.LEGACY.getSampleRate(), format.getSampleRate()) : new Resampler(format.getSampleRate(), SessionFormat.LEGACY.getSampleRate());
+                from.setResampler(r);
+            }
+            return transcoder.transcode(m, fromLegacy ? ((SoundPacket) m.getData()).getCodec() : Codecs.GZIP, r);
+        }
+
+        private void mix() { //mixes and sends the ticks that are due, if any
+            long due = (System.nanoTime() - mixStart) / tickNanos;
+            if (due - mixTicks > 5) { //we fell behind (GC, overload), don't try to catch up
+                mixTicks = due;
+            }
+            while (mixTicks <= due) {
+                mixTicks++;
+                for (Room r : rooms.values()) {
+                    r.getMixer().tick(r.getMembers());
+                }
+            }
+        }
+
+        private Room createRoom(String name) {
+            return new Room(name, mixing ? new Mixer(format, ttl) : null, activeSpeakers > 0 ? new SpeakerSelector(activeSpeakers) : null);
+        }
+
+        private void join(ClientConnection cc, Room r) {
+            if (cc.getRoom() == r) {
+                return;
+            }
+            leave(cc);
+            r.add(cc);
+            cc.setRoom(r);
+            if (r != lobby) {
+                Log.add("client " + cc.getChId() + " joined room " + r.getName());
+            }
+        }
+
+        private void leave(ClientConnection cc) {
+            Room r = cc.getRoom();
+            if (r == null) {
+                return;
+            }
+            r.remove(cc);
+            cc.setRoom(null);
+            if (r.isEmpty() && r != lobby) {
+                rooms.remove(r.getName());
             }
         }
     }
@@ -0,0 +1,185 @@
+
+import java.util.Arrays;
+import java.util.Properties;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * settings used to start a Server. defaults can be overridden with system
+ * properties (-Dvoicechat.mode=nio, -Dvoicechat.eventLoops=4, ...), or with
+ * the same keys without the prefix in a properties file or on the command
+ * line of ServerMain
+ *
+ */
+public class ServerConfig {
+
+    public static final String[] KEYS = {"port", "upnp", "mode", "eventLoops", "udp", "mediaSockets", "mixing", "activeSpeakers", "queueSize", "ttl", "sampleRate", "frameMs", "metricsPort"};
+
+    private int port = 13440;
+    private boolean upnp = true;
+    private ServerMode mode = ServerMode.THREADS;
+    private int eventLoops = Runtime.getRuntime().availableProcessors(); //number of EventLoop threads in NIO mode, one per core by default
+    private boolean udp = true; //offer UDP for sound frames to the clients that support it, on the same port number as TCP
+    private int mediaSockets = Runtime.getRuntime().availableProcessors(); //UDP sockets sharing the port with SO_REUSEPORT, one per core by default
+    private boolean mixing = false; //MCU mode: mix the speakers on the server and send each client a single stream
+    private int activeSpeakers = 0; //if > 0, only this many of the loudest speakers are forwarded to the clients. 0 forwards everybody
+    private int queueSize = 64; //messages queued for each client before the oldest are thrown away, a bit more than 1s of audio from a few speakers
+    private SessionFormat format = new SessionFormat(16000, 20); //what the clients record and play at, if they support it. a higher rate sounds better and costs more bandwidth
+    private int ttl = 2000; //ms a sound frame can wait in a client's queue before it's thrown away, late audio is worse than none
+    private int metricsPort = 0; //if > 0, the Metrics are served over HTTP on this port of the loopback interface. 0 shows them only through JMX
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig c = new ServerConfig();
+        c.apply(System.getProperties(), "voicechat.");
+        return c;
+    }
+
+    /**
+     * overrides the settings that are in p, named prefix + one of KEYS. the
+     * others are left as they are. throws IllegalArgumentException if a value
+     * isn't valid
+     */
+    public void apply(Properties p, String prefix) {
+        setPort(intValue(p, prefix + "port", getPort()));
+        setUpnp(booleanValue(p, prefix + "upnp", isUpnp()));
+        String m = p.getProperty(prefix + "mode");
+        if (m != null) {
+            try {
+                setMode(ServerMode.valueOf(m.trim().toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(prefix + "mode must be one of " + Arrays.toString(ServerMode.values()) + ": " + m);
+            }
+        }
+        setEventLoops(intValue(p, prefix + "eventLoops", getEventLoops()));
+        setUdp(booleanValue(p, prefix + "udp", isUdp()));
+        setMediaSockets(intValue(p, prefix + "mediaSockets", getMediaSockets()));
+        setMixing(booleanValue(p, prefix + "mixing", isMixing()));
+        setActiveSpeakers(intValue(p, prefix + "activeSpeakers", getActiveSpeakers()));
+        setQueueSize(intValue(p, prefix + "queueSize", getQueueSize()));
+        setTtl(intValue(p, prefix + "ttl", getTtl()));
+        setFormat(new SessionFormat(intValue(p, prefix + "sampleRate", getFormat().getSampleRate()), intValue(p, prefix + "frameMs", getFormat().getFrameMs())));
+        setMetricsPort(intValue(p, prefix + "metricsPort", getMetricsPort()));
+    }
+
+    private static int intValue(Properties p, String key, int value) {
+        String v = p.getProperty(key);
+        if (v == null) {
+            return value;
+        }
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " must be a number: " + v);
+        }
+    }
+
+    private static boolean booleanValue(Properties p, String key, boolean value) {
+        String v = p.getProperty(key);
+        if (v == null) {
+            return value;
+        }
+        if (!v.trim().equalsIgnoreCase("true") && !v.trim().equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException(key + " must be true or false: " + v);
+        }
+        return Boolean.parseBoolean(v.trim());
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public boolean isUpnp() {
+        return upnp;
+    }
+
+    public void setUpnp(boolean upnp) {
+        this.upnp = upnp;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public void setMode(ServerMode mode) {
+        this.mode = mode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = Math.max(1, eventLoops);
+    }
+
+    public boolean isUdp() {
+        return udp;
+    }
+
+    public void setUdp(boolean udp) {
+        this.udp = udp;
+    }
+
+    public int getMediaSockets() {
+        return mediaSockets;
+    }
+
+    public void setMediaSockets(int mediaSockets) {
+        this.mediaSockets = Math.max(1, mediaSockets);
+    }
+
+    public boolean isMixing() {
+        return mixing;
+    }
+
+    public void setMixing(boolean mixing) {
+        this.mixing = mixing;
+    }
+
+    public int getActiveSpeakers() {
+        return activeSpeakers;
+    }
+
+    public void setActiveSpeakers(int activeSpeakers) {
+        this.activeSpeakers = Math.max(0, activeSpeakers);
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(2, queueSize);
+    }
+
+    public SessionFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(SessionFormat format) {
+        this.format = format;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = Math.max(1, ttl);
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = Math.max(0, metricsPort);
+    }
+}
@@ -0,0 +1,103 @@
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * starts the server without the GUI, for machines with no display: nothing
+ * here loads Swing or AWT, and the log goes to the standard output.
+ * the settings are the ones of ServerConfig: its defaults, overridden by the
+ * voicechat.* system properties, then by a properties file, then by the
+ * command line. usage:
+ * java -cp Voice_Call_Server.jar ServerMain [--config file] [--port 13440]
+ * [--upnp false] [--mode nio] [--eventLoops 4] [--queueSize 64] [--ttl 500]
+ * ... (any of ServerConfig.KEYS, as --key value or --key=value)
+ *
+ */
+public class ServerMain {
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        try {
+            Properties options = parse(args);
+            if (options == null) { //--help
+                usage();
+                return;
+            }
+            String file = options.getProperty("config");
+            if (file != null) {
+                config.apply(load(file), "");
+            }
+            config.apply(options, "");
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+            System.exit(2);
+        } catch (IOException ex) {
+            System.err.println("can't read the configuration: " + ex);
+            System.exit(2);
+        }
+        Log.setOutput(System.out);
+        new Server(config); //accepts clients until the process is stopped
+    }
+
+    /**
+     * reads --key value and --key=value arguments. returns null if help was
+     * asked for
+     */
+    private static Properties parse(String[] args) {
+        Properties p = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--help") || a.equals("-h")) {
+                return null;
+            }
+            if (!a.startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument " + a);
+            }
+            String key = a.substring(2), value;
+            int eq = key.indexOf('=');
+            if (eq >= 0) {
+                value = key.substring(eq + 1);
+                key = key.substring(0, eq);
+            } else if (i + 1 < args.length) {
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("no value for " + a);
+            }
+            if (!key.equals("config") && !Arrays.asList(ServerConfig.KEYS).contains(key)) {
+                throw new IllegalArgumentException("unknown option " + a);
+            }
+            p.setProperty(key, value);
+        }
+        return p;
+    }
+
+    private static Properties load(String file) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        for (String key : p.stringPropertyNames()) { //a typo would silently leave the default
+            if (!Arrays.asList(ServerConfig.KEYS).contains(key)) {
+                throw new IllegalArgumentException("unknown setting " + key + " in " + file);
+            }
+        }
+        return p;
+    }
+
+    private static void usage() {
+        System.err.println("usage: ServerMain [--config file.properties] [--key value]...");
+        System.err.println("keys: " + Arrays.toString(ServerConfig.KEYS));
+    }
+}
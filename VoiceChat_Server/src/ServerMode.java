@@ -0,0 +1,15 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * how the server moves bytes between sockets and ClientConnections
+ *
+ */
+public enum ServerMode {
+    THREADS, //one ClientThread per client, polling its socket and its queue (original design)
+    BLOCKING, //two threads per client, blocked reading from its socket and waiting for its queue
+    VIRTUAL, //like BLOCKING, with virtual threads (Java 21+, falls back to BLOCKING)
+    NIO //a few EventLoop threads multiplexing all clients with a Selector
+}
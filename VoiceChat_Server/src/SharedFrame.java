@@ -0,0 +1,135 @@
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * a message encoded once with the binary protocol, shared by all the clients
+ * that have to receive it. the bytes never change after encoding, so every
+ * ClientConnection writes the same buffer instead of encoding the message
+ * again. the buffer starts with the sequence number used over UDP, so the
+ * same bytes also make the datagram sent to clients that registered a UDP
+ * address. each queue holding the frame owns a reference: when the last one is
+ * released the buffer goes back to a pool.
+ * old clients still get the Message serialized by their own
+ * ObjectOutputStream, because its bytes depend on the state of that stream
+ *
+ */
+public class SharedFrame {
+
+    private static final int POOLED_SIZE = 2048; //voice frames fit in this, bigger ones are allocated and left to the GC
+    private static final int MAX_POOLED = 4096; //buffers kept in the pool
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger pooled = new AtomicInteger(); //size of the pool, ConcurrentLinkedQueue.size() is slow
+    private final Message message;
+    private ByteBuffer buf; //the encoded datagram, from 0 to limit: seq, then the frame from 4. direct, so the EventLoops can write it without copying it
+    private final AtomicInteger refs = new AtomicInteger(1); //the creator owns the first reference
+
+    private SharedFrame(Message message, ByteBuffer buf) {
+        this.message = message;
+        this.buf = buf;
+    }
+
+    /**
+     * encodes a message. the caller owns one reference and must release it
+     */
+    public static SharedFrame encode(Message m) {
+        long start = System.nanoTime();
+        int len = FrameCodec.encodedLength(m) + 4;
+        ByteBuffer b = null;
+        if (len <= POOLED_SIZE) {
+            b = pool.poll();
+            if (b == null) {
+                b = ByteBuffer.allocateDirect(POOLED_SIZE);
+            } else {
+                pooled.decrementAndGet();
+                b.clear();
+            }
+        } else {
+            b = ByteBuffer.allocateDirect(len);
+        }
+        FrameCodec.encodeDatagram(m, b);
+        b.flip();
+        Metrics.serialize.record(System.nanoTime() - start);
+        return new SharedFrame(m, b);
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public int length() { //length of the frame sent over TCP
+        return buf.limit() - 4;
+    }
+
+    /**
+     * length of what is written on the TCP connection of a client that uses
+     * version: the frame, preceded by the sequence number from SEQ_VERSION
+     */
+    public int length(int version) {
+        return version >= FrameCodec.SEQ_VERSION ? buf.limit() : buf.limit() - 4;
+    }
+
+    public int datagramLength() {
+        return buf.limit();
+    }
+
+    /**
+     * returns a view of the encoded frame with its own position, to be written
+     * by one client
+     */
+    public ByteBuffer duplicate() {
+        ByteBuffer d = buf.duplicate();
+        d.position(4);
+        return d;
+    }
+
+    /**
+     * returns a view of what is written on the TCP connection of a client that
+     * uses version, with its own position
+     */
+    public ByteBuffer duplicate(int version) {
+        return version >= FrameCodec.SEQ_VERSION ? datagram() : duplicate();
+    }
+
+    /**
+     * returns a view of the encoded datagram with its own position, to be sent
+     * to one client over UDP
+     */
+    public ByteBuffer datagram() {
+        return buf.duplicate();
+    }
+
+    /**
+     * adds a reference, before giving this frame to another ClientConnection
+     */
+    public SharedFrame retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * drops a reference, after the frame has been sent or thrown away
+     */
+    public void release() {
+        int r = refs.decrementAndGet();
+        if (r == 0) {
+            ByteBuffer b = buf;
+            buf = null;
+            if (b.capacity() == POOLED_SIZE) {
+                if (pooled.incrementAndGet() <= MAX_POOLED) {
+                    pool.add(b);
+                } else {
+                    pooled.decrementAndGet();
+                }
+            }
+        } else if (r < 0) {
+            throw new IllegalStateException("frame released too many times");
+        }
+    }
+}
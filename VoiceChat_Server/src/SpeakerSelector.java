@@ -0,0 +1,99 @@
+
+import java.util.ArrayList;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * active speaker mode: only the K loudest speakers are forwarded, everybody
+ * else's frames (and the silence markers of people who aren't talking) are
+ * thrown away. cheaper than mixing, because the server never decodes audio:
+ * it uses the level that new clients put in their frames. frames without a
+ * level (old clients) count as loud while they carry sound.
+ * each speaker's level is averaged over a short window, and a forwarded
+ * speaker is replaced only by someone clearly louder, so the selection doesn't
+ * flap between people talking at the same volume. used only by the
+ * BroadcastThread
+ *
+ */
+public class SpeakerSelector {
+
+    private static final double WINDOW = 300; //ms, time constant of the level average
+    private static final long HOLD = 200; //ms the average is held after a frame before it starts decaying, longer than the time between two frames
+    private static final double HYSTERESIS = 1.25; //how much louder than a forwarded speaker someone must be to replace it
+    private static final double MIN_ENERGY = 1; //below this a speaker is silent and not forwarded anymore
+    private static final int UNKNOWN_LEVEL = Byte.MAX_VALUE; //level of the frames that don't carry one
+    private static final long IDLE_TIMEOUT = 5000; //ms without frames after which a speaker is forgotten
+    private final int k;
+    private ArrayList<Speaker> speakers = new ArrayList<Speaker>();
+    private LongMap<Speaker> byChId = new LongMap<Speaker>(); //the same, to find the sender of a message
+    private long lastCleanup = 0;
+
+    private static class Speaker {
+
+        private long chId;
+        private double energy = 0; //average level at lastUpdate
+        private long lastUpdate;
+        private boolean selected = false; //true if its last frame was forwarded
+
+        private Speaker(long chId, long now) {
+            this.chId = chId;
+            lastUpdate = now - IDLE_TIMEOUT; //as if it had been silent for a long time, so its first level counts fully
+        }
+
+        private double energyAt(long now) { //the average decays when frames stop arriving
+            return energy * Math.exp(-Math.max(0, now - lastUpdate - HOLD) / WINDOW);
+        }
+    }
+
+    public SpeakerSelector(int k) {
+        this.k = k;
+    }
+
+    /**
+     * updates the level of the message's sender and returns true if the
+     * message must be forwarded
+     */
+    public boolean forward(Message m) {
+        long now = System.nanoTime() / 1000000L;
+        Speaker s = find(m.getChId(), now);
+        int level = ((SoundPacket) m.getData()).getData() == null ? 0 : m.getLevel() < 0 ? UNKNOWN_LEVEL : m.getLevel();
+        double decay = Math.exp(-(now - s.lastUpdate) / WINDOW);
+        s.energy = s.energy * decay + (1 - decay) * level;
+        s.lastUpdate = now;
+        if (s.energy < MIN_ENERGY && level == 0) { //not talking
+            s.selected = false;
+            return false;
+        }
+        double threshold = s.selected ? s.energy * HYSTERESIS : s.energy;
+        int louder = 0; //speakers that would take this one's place
+        for (int i = 0; i < speakers.size() && louder < k; i++) {
+            Speaker o = speakers.get(i);
+            if (o != s && o.energyAt(now) > threshold) {
+                louder++;
+            }
+        }
+        s.selected = louder < k;
+        if (now - lastCleanup > IDLE_TIMEOUT) {
+            lastCleanup = now;
+            for (int i = speakers.size() - 1; i >= 0; i--) {
+                if (now - speakers.get(i).lastUpdate > IDLE_TIMEOUT) {
+                    byChId.remove(speakers.remove(i).chId);
+                }
+            }
+        }
+        return s.selected;
+    }
+
+    private Speaker find(long chId, long now) {
+        Speaker s = byChId.get(chId);
+        if (s == null) {
+            s = new Speaker(chId, now);
+            speakers.add(s);
+            byChId.put(chId, s);
+        }
+        return s;
+    }
+}
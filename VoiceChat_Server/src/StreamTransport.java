@@ -0,0 +1,172 @@
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/*
+ * To change this template, choose Tools | Templates and open the template in
+ * the editor.
+ */
+/**
+ * the streams of a client served with blocking sockets. it speaks the binary
+ * protocol with new clients and Java serialization with old ones.
+ * used by a ClientThread, which polls both directions, or (BLOCKING and
+ * VIRTUAL mode) by two threads that block instead: one reading messages and
+ * passing them to the ClientConnection, the other waiting for messages to
+ * send. blocked threads cost nothing while a client is idle, and with virtual
+ * threads they're cheap enough for tens of thousands of connections
+ *
+ */
+public class StreamTransport {
+
+    private ClientConnection cc; //state of this connection
+    private Socket s; //connection to client
+    private BufferedInputStream bin; //raw streams to/from client
+    private OutputStream os;
+    private boolean binary; //true if the client speaks the binary protocol
+    private DataInputStream din; //binary protocol
+    private ByteBuffer frame = ByteBuffer.allocate(2048); //grows if a bigger frame must be sent. small, so idle connections don't take much memory
+    private ObjectInputStream in; //object streams to/from old clients
+    private ObjectOutputStream out;
+    private int written = 0; //messages written to out
+
+    public StreamTransport(ClientConnection cc, Socket s) {
+        this.cc = cc;
+        this.s = s;
+    }
+
+    /**
+     * creates the streams and negotiates the protocol
+     */
+    public void open() throws IOException {
+        os = s.getOutputStream();
+        bin = new BufferedInputStream(s.getInputStream());
+        out = new ObjectOutputStream(os); //sends the stream header: old clients wait for it, new ones skip it
+        negotiate();
+    }
+
+    /**
+     * serves the client with a reading thread and a writing thread, virtual
+     * ones if virtual is true
+     */
+    public void start(final boolean virtual) {
+        Threads.start("ClientReader-" + cc.getChId(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open();
+                } catch (IOException ex) { //connection error, close connection
+                    Log.add(Log.Level.ERROR, cc.getChId(), cc.getInetAddress() + ":" + cc.getPort() + " " + ex);
+                    close();
+                    return;
+                }
+                Threads.start("ClientWriter-" + cc.getChId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        writeLoop();
+                    }
+                }, virtual);
+                try {
+                    for (;;) {
+                        receive(); //blocks until the client sends something
+                    }
+                } catch (Exception ex) { //connection closed or connection error
+                    close();
+                }
+            }
+        }, virtual);
+    }
+
+    private void writeLoop() {
+        try {
+            for (;;) {
+                SharedFrame toClient = cc.takeToSend(); //blocks until there's something to send
+                if (toClient == null) { //connection closed
+                    return;
+                }
+                try {
+                    send(toClient);
+                } finally {
+                    toClient.release();
+                }
+            }
+        } catch (Exception ex) { //connection closed or connection error
+            close();
+        }
+    }
+
+    /**
+     * true if a message can be received without blocking (at least partly)
+     */
+    public boolean available() throws IOException {
+        return bin.available() > 0;
+    }
+
+    /**
+     * reads a message from the client and passes it to the ClientConnection
+     */
+    public void receive() throws IOException, ClassNotFoundException {
+        cc.received(binary ? FrameCodec.read(din, cc.getVersion()) : (Message) in.readObject());
+    }
+
+    /**
+     * looks at the first bytes sent by the client to decide which protocol it
+     * speaks. a new client sends a hello, an old one its object stream header
+     */
+    private void negotiate() throws IOException {
+        din = new DataInputStream(bin);
+        bin.mark(FrameCodec.HELLO_LENGTH);
+        byte[] hello = new byte[FrameCodec.HELLO_LENGTH];
+        din.readFully(hello, 0, 4);
+        if (ByteBuffer.wrap(hello).getInt() == FrameCodec.MAGIC) {
+            din.readFully(hello, 4, 1);
+            int version = FrameCodec.readHello(ByteBuffer.wrap(hello));
+            if (version <= 0) {
+                throw new IOException("invalid protocol version");
+            }
+            binary = true;
+            frame.clear();
+            FrameCodec.writeHelloReply(frame, version);
+            Message offer = cc.negotiated(Math.min(version, FrameCodec.VERSION));
+            if (offer != null) { //tell the client it can send its sound over UDP
+                FrameCodec.encode(offer, frame, false, cc.getVersion());
+            }
+            os.write(frame.array(), 0, frame.position());
+        } else { //old client, let the ObjectInputStream read the header again
+            bin.reset();
+            in = new ObjectInputStream(bin);
+        }
+    }
+
+    public void send(SharedFrame f) throws IOException {
+        if (binary) { //already encoded by the BroadcastThread, just copy it out of its direct buffer
+            int len = f.length(cc.getVersion());
+            if (len > frame.capacity()) {
+                frame = ByteBuffer.allocate(len);
+            }
+            f.duplicate(cc.getVersion()).get(frame.array(), 0, len);
+            os.write(frame.array(), 0, len);
+        } else {
+            Message m = f.getMessage();
+            if (++written % FrameCodec.OBJECT_STREAM_RESET_INTERVAL == 0) { //forget the objects written so far, or the stream keeps them in memory forever (done before writing, so a reset is never the last thing in the stream)
+                out.reset();
+            }
+            long start = System.nanoTime();
+            out.writeObject(m);
+            Metrics.serialize.record(System.nanoTime() - start);
+        }
+    }
+
+    public void close() {
+        cc.close();
+        try {
+            s.close();
+        } catch (IOException ex) {
+        }
+    }
+}
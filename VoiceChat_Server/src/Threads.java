@@ -0,0 +1,55 @@
+
+import java.lang.reflect.Method;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * starts platform or virtual threads. virtual threads are only available on
+ * Java 21 and later, so they're created by reflection: on older JVMs
+ * virtualSupported() is false and start() falls back to platform threads
+ *
+ */
+public class Threads {
+
+    private static final Object VIRTUAL_BUILDER; //Thread.ofVirtual(), null if not available
+    private static final Method NAME, START; //Thread.Builder.name(String) and start(Runnable)
+
+    static {
+        Object builder = null;
+        Method name = null, start = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> c = Class.forName("java.lang.Thread$Builder");
+            name = c.getMethod("name", String.class);
+            start = c.getMethod("start", Runnable.class);
+        } catch (Exception ex) { //older JVM, or preview feature not enabled
+            builder = null;
+        }
+        VIRTUAL_BUILDER = builder;
+        NAME = name;
+        START = start;
+    }
+
+    public static boolean virtualSupported() {
+        return VIRTUAL_BUILDER != null;
+    }
+
+    /**
+     * starts a thread running r, a virtual one if virtual is true and they're
+     * supported
+     */
+    public static Thread start(String name, Runnable r, boolean virtual) {
+        if (virtual && VIRTUAL_BUILDER != null) {
+            try {
+                return (Thread) START.invoke(NAME.invoke(VIRTUAL_BUILDER, name), r);
+            } catch (Exception ex) { //shouldn't happen, use a platform thread
+            }
+        }
+        Thread t = new Thread(r, name);
+        t.start();
+        return t;
+    }
+}
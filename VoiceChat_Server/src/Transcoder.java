@@ -0,0 +1,98 @@
+
+import java.io.IOException;
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ * decodes and encodes the sound in SoundPackets with any of the supported
+ * SpeechCodecs, between their data and the 16 bit samples used by the Mixer,
+ * resampling it when it goes between clients in different SessionFormats.
+ * keeps one instance of each codec and all its buffers, so nothing is
+ * allocated but the encoded data. not thread safe: used by the
+ * BroadcastThread (to give GZIP to the clients that don't know the codec of a
+ * frame, and the right rate to the clients in the other format) and by each
+ * Mixer
+ *
+ */
+public class Transcoder {
+
+    private static final int MAX_SAMPLES = 65536; //longest decoded frame
+    private SpeechCodec[] codecs = new SpeechCodec[FrameCodec.MAX_CODECS];
+    private short[] pcm = new short[MAX_SAMPLES];
+    private short[] resampled = new short[0];
+    private byte[] encoded = new byte[0];
+
+    private SpeechCodec codec(int id) throws IOException {
+        if (id < 0 || id >= codecs.length) {
+            throw new IOException("unknown codec " + id);
+        }
+        if (codecs[id] == null) {
+            codecs[id] = Codecs.create(id);
+            if (codecs[id] == null) {
+                throw new IOException("unknown codec " + id);
+            }
+        }
+        return codecs[id];
+    }
+
+    /**
+     * decodes the data of a SoundPacket (not null) and returns how many
+     * samples it had
+     */
+    public int decode(SoundPacket p, short[] out) throws IOException {
+        long start = System.nanoTime();
+        int n = codec(p.getCodec()).decode(p.getData(), p.getData().length, pcm);
+        Metrics.compress.record(System.nanoTime() - start);
+        if (n > out.length) {
+            throw new IOException("frame too long");
+        }
+        System.arraycopy(pcm, 0, out, 0, n);
+        return n;
+    }
+
+    /**
+     * encodes len samples with a codec
+     */
+    public byte[] encode(short[] samples, int len, int codec) throws IOException {
+        SpeechCodec c = codec(codec);
+        if (encoded.length < c.maxEncodedLength(len)) {
+            encoded = new byte[c.maxEncodedLength(len)];
+        }
+        long start = System.nanoTime();
+        byte[] data = new byte[c.encode(samples, len, encoded)];
+        Metrics.compress.record(System.nanoTime() - start);
+        System.arraycopy(encoded, 0, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * returns a copy of a sound message with its data encoded with another
+     * codec, and converted to another rate by resampler if it's not null
+     */
+    public Message transcode(Message m, int codec, Resampler resampler) throws IOException {
+        SoundPacket p = (SoundPacket) m.getData();
+        SoundPacket q = p;
+        if (p.getData() != null && (p.getCodec() != codec || resampler != null)) {
+            long start = System.nanoTime();
+            int n = codec(p.getCodec()).decode(p.getData(), p.getData().length, pcm);
+            Metrics.compress.record(System.nanoTime() - start);
+            short[] samples = pcm;
+            if (resampler != null) {
+                if (resampled.length < resampler.maxOutput(n)) {
+                    resampled = new short[resampler.maxOutput(n)];
+                }
+                n = resampler.process(pcm, n, resampled);
+                samples = resampled;
+            }
+            q = new SoundPacket(encode(samples, n, codec), codec);
+        }
+        Message t = new Message(m.getChId(), m.getTimestamp(), q);
+        t.setTtl(m.getTtl());
+        t.setSeq(m.getSeq());
+        t.setLevel(m.getLevel());
+        return t;
+    }
+}